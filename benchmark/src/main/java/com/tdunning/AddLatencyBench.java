@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning;
+
+import com.tdunning.math.stats.AVLTreeDigest;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import org.apache.mahout.math.jet.random.AbstractDistribution;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the latency of individual adds so that the occasional expensive add shows up. Most adds
+ * to a {@link MergingDigest} just store the sample, but one add in each buffer-full pays for a
+ * sort and merge. Most adds to an {@link AVLTreeDigest} are a tree insert, but some trigger a
+ * full {@code compress()}. An average hides both, so look at the p0.99, p0.999 and p1.00 rows.
+ * <p>
+ * The buffer size only applies to {@link MergingDigest} so the two implementations have their
+ * own state classes. A buffer size of -1 uses the default. Run the main method to write all of
+ * the percentiles to add-latency.csv for tracking regressions.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 3, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+public class AddLatencyBench {
+    private static final int DATA_SIZE = 1000000;
+
+    // first values are cheap to add, so every digest is pre-filled to have more realistic results
+    private static final int PREFILL = 10000;
+
+    @State(Scope.Thread)
+    public static class MergingState {
+        @Param({"100", "300", "1000"})
+        public double compression;
+
+        @Param({"-1", "1000", "10000", "100000"})
+        public int bufferSize;
+
+        @Param({"SEQUENTIAL", "REPEATED", "GAMMA"})
+        public TDigestBench.DistributionFactory distribution;
+
+        double[] data;
+        int index = 0;
+        TDigest td;
+
+        @Setup
+        public void setup() {
+            data = samples(distribution);
+            td = new MergingDigest(compression, bufferSize);
+            prefill(td, data);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AvlTreeState {
+        @Param({"100", "300", "1000"})
+        public double compression;
+
+        @Param({"SEQUENTIAL", "REPEATED", "GAMMA"})
+        public TDigestBench.DistributionFactory distribution;
+
+        double[] data;
+        int index = 0;
+        TDigest td;
+
+        @Setup
+        public void setup() {
+            data = samples(distribution);
+            td = new AVLTreeDigest(compression);
+            prefill(td, data);
+        }
+    }
+
+    private static double[] samples(TDigestBench.DistributionFactory distribution) {
+        AbstractDistribution gen = distribution.create(new Random());
+        double[] r = new double[DATA_SIZE];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = gen.nextDouble();
+        }
+        return r;
+    }
+
+    private static void prefill(TDigest td, double[] data) {
+        for (int i = 0; i < PREFILL; i++) {
+            td.add(data[i]);
+        }
+    }
+
+    @Benchmark
+    public void mergingAdd(MergingState state) {
+        if (state.index >= state.data.length) {
+            state.index = 0;
+        }
+        state.td.add(state.data[state.index++]);
+    }
+
+    @Benchmark
+    public void avlTreeAdd(AvlTreeState state) {
+        if (state.index >= state.data.length) {
+            state.index = 0;
+        }
+        state.td.add(state.data[state.index++]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + AddLatencyBench.class.getSimpleName() + ".*")
+                .resultFormat(ResultFormatType.CSV)
+                .result("add-latency.csv")
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning;
+
+import com.tdunning.math.stats.ConcurrentMergingDigest;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how adding from many threads scales with the number of threads.
+ * <p>
+ * The add benchmark has every thread add to one shared digest, either the striped
+ * {@link ConcurrentMergingDigest} or, as the baseline, a plain {@link MergingDigest} behind a
+ * single lock. In the sharded group each producer adds to its own {@link MergingDigest} instead
+ * and an aggregator repeatedly swaps a fresh digest into every shard and folds the old ones into a
+ * running total with {@link TDigest#add(List)}. The shard locks are only contended for the instant
+ * of a swap. The score of shardedAdd is the total adds per second over all producers and the score
+ * of shardedMerge is merges per second, so one over it is the latency of a merge.
+ * <p>
+ * Run the main method to sweep from 1 to 64 threads. To pick a single count on the JMH command
+ * line use <pre>-t N</pre> for add and <pre>-tg N,1</pre> for the sharded group.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ConcurrentAddBench {
+    private static final int DATA_SIZE = 65536;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"concurrent", "synchronized"})
+        public String method;
+
+        @Param({"100"})
+        public int compression;
+
+        TDigest td;
+
+        @Setup
+        public void setup() {
+            if (method.equals("concurrent")) {
+                td = new ConcurrentMergingDigest(compression);
+            } else {
+                td = new MergingDigest(compression);
+            }
+            Random gen = new Random();
+            for (int i = 0; i < 5 * compression; ++i) {
+                td.add(gen.nextDouble());
+            }
+        }
+    }
+
+    /**
+     * The samples each thread adds, whichever way the digests are shared.
+     */
+    @State(Scope.Thread)
+    public static class Samples {
+        double[] data;
+        int index = 0;
+
+        @Setup
+        public void setup() {
+            Random gen = new Random();
+            data = new double[DATA_SIZE];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = gen.nextDouble();
+            }
+        }
+
+        double next() {
+            double x = data[index];
+            index = (index + 1) & (DATA_SIZE - 1);
+            return x;
+        }
+    }
+
+    /**
+     * One producer's digest. Only the producer adds to it, the aggregator just swaps it out.
+     */
+    static final class Shard {
+        private final double compression;
+        private MergingDigest digest;
+
+        Shard(double compression) {
+            this.compression = compression;
+            digest = new MergingDigest(compression);
+        }
+
+        synchronized void add(double x) {
+            digest.add(x);
+        }
+
+        synchronized MergingDigest swap() {
+            MergingDigest r = digest;
+            digest = new MergingDigest(compression);
+            return r;
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Aggregate {
+        @Param({"100"})
+        public int compression;
+
+        final List<Shard> shards = new CopyOnWriteArrayList<>();
+        MergingDigest total;
+
+        @Setup
+        public void setup() {
+            shards.clear();
+            total = new MergingDigest(compression);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        Shard shard;
+
+        @Setup
+        public void setup(Aggregate aggregate) {
+            shard = new Shard(aggregate.compression);
+            aggregate.shards.add(shard);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void add(Shared shared, Samples samples) {
+        TDigest td = shared.td;
+        if (td instanceof ConcurrentMergingDigest) {
+            td.add(samples.next());
+        } else {
+            synchronized (td) {
+                td.add(samples.next());
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("sharded")
+    @GroupThreads(4)
+    public void shardedAdd(Producer producer, Samples samples) {
+        producer.shard.add(samples.next());
+    }
+
+    @Benchmark
+    @Group("sharded")
+    @GroupThreads(1)
+    public TDigest shardedMerge(Aggregate state) {
+        List<TDigest> parts = new ArrayList<>();
+        for (Shard shard : state.shards) {
+            parts.add(shard.swap());
+        }
+        state.total.add(parts);
+        return state.total;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            Options shared = new OptionsBuilder()
+                    .include(".*" + ConcurrentAddBench.class.getSimpleName() + ".add$")
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.CSV)
+                    .result("concurrent-add-" + threads + ".csv")
+                    .build();
+            new Runner(shared).run();
+
+            Options sharded = new OptionsBuilder()
+                    .include(".*" + ConcurrentAddBench.class.getSimpleName() + ".sharded.*")
+                    .threadGroups(threads, 1)
+                    .resultFormat(ResultFormatType.CSV)
+                    .result("sharded-add-" + threads + ".csv")
+                    .build();
+            new Runner(sharded).run();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning;
+
+import com.tdunning.math.stats.MergingDigest;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the latency of individual adds to show the tail. A {@link MergingDigest} does a whole
+ * merge on one add in a few thousand while one with
+ * {@link MergingDigest#setIncrementalMerge(int) incremental merging} spreads the same work over
+ * many adds. Compare the p99.9 and max lines of the two.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 3, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class IncrementalAddBench {
+    @Param({"merging", "incremental"})
+    public String method;
+
+    @Param({"100", "300"})
+    public int compression;
+
+    private double[] data;
+    private int index = 0;
+    private MergingDigest td;
+
+    @Setup
+    public void setup() {
+        Random gen = new Random();
+        data = new double[1000000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextGaussian();
+        }
+        td = new MergingDigest(compression);
+        if (method.equals("incremental")) {
+            td.setIncrementalMerge(-1);
+        }
+        // first values are cheap to add, so pre-fill the t-digest to have more realistic results
+        for (int i = 0; i < 10000; ++i) {
+            td.add(gen.nextGaussian());
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        if (index >= data.length) {
+            index = 0;
+        }
+        td.add(data[index++]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + IncrementalAddBench.class.getSimpleName() + ".*")
+                .resultFormat(ResultFormatType.CSV)
+                .result("incremental-add.csv")
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times merging many digests into one with {@link TDigest#add(List)}, as in a rollup, based on
+ * the megaMerge case in MegaMergeTest.
+ * <p>
+ * Building 100,000 separate digests would take far too long and too much memory, so, as in that
+ * test, there are at most {@link #DISTINCT} different sources and larger fan-ins cycle through
+ * them. The merge can't tell the difference.
+ * <p>
+ * {@link MergingDigest#useTwoLevelCompression} is only read by the constructor, before it can be
+ * changed. The one-level case asks for the smallest possible buffer instead, which makes the
+ * constructor keep the requested compression internally. The incoming buffer isn't used when
+ * merging whole digests so that is the only thing that changes.
+ * <p>
+ * The centroids counter gives the size of the merged result. Run the main method to include
+ * the GC profiler and write megamerge-results.csv.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 3, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class MegaMergeBench {
+    static final int DISTINCT = 1000;
+    private static final int POINTS = 10000;
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int fanIn;
+
+    @Param({"100", "500"})
+    public double sourceCompression;
+
+    @Param({"100", "500"})
+    public double targetCompression;
+
+    @Param({"true", "false"})
+    public boolean useTwoLevelCompression;
+
+    private List<TDigest> sources;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Result {
+        public int centroids;
+    }
+
+    @Setup
+    public void setup() {
+        Random gen = new Random();
+        double[] data = new double[10013];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextGaussian();
+        }
+
+        List<TDigest> distinct = new ArrayList<>();
+        int k = 0;
+        for (int i = 0; i < Math.min(fanIn, DISTINCT); i++) {
+            MergingDigest td = new MergingDigest(sourceCompression);
+            for (int j = 0; j < POINTS; j++) {
+                td.add(data[k]);
+                k = (k + 1) % data.length;
+            }
+            td.compress();
+            distinct.add(td);
+        }
+
+        sources = new ArrayList<>();
+        for (int i = 0; i < fanIn; i++) {
+            sources.add(distinct.get(i % distinct.size()));
+        }
+    }
+
+    @Benchmark
+    public TDigest merge(Result result) {
+        MergingDigest r;
+        if (useTwoLevelCompression) {
+            r = new MergingDigest(targetCompression);
+        } else {
+            r = new MergingDigest(targetCompression, 1);
+        }
+        r.add(sources);
+        r.compress();
+        result.centroids = r.centroidCount();
+        return r;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + MegaMergeBench.class.getSimpleName() + ".*")
+                .resultFormat(ResultFormatType.CSV)
+                .result("megamerge-results.csv")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
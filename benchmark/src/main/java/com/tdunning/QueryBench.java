@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning;
+
+import com.tdunning.math.stats.AVLTreeDigest;
+import com.tdunning.math.stats.Centroid;
+import com.tdunning.math.stats.Comparison;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the read side of a digest: quantiles, cdf, walking the centroids and comparing two
+ * digests.
+ * <p>
+ * In the steady state the digest has already been merged so each query only reads. In the dirty
+ * state a few new samples are added before every query, so a {@link MergingDigest} has to merge
+ * its buffer first and an {@link AVLTreeDigest} can't reuse anything it worked out for the last
+ * query. Those samples are added in an invocation-level setup which isn't timed, but it does add
+ * some noise for the fastest queries, so the two states are best compared on the slower ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 3, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class QueryBench {
+    private static final int SAMPLES = 100000;
+    private static final int QUERIES = 1024;
+    private static final int DIRTY_SAMPLES = 100;
+
+    @Param({"50", "100", "500", "1000", "5000"})
+    public double compression;
+
+    @Param({"MERGE", "AVL_TREE"})
+    public String implementation;
+
+    @Param({"steady", "dirty"})
+    public String state;
+
+    private Random gen;
+    private TDigest td;
+    private TDigest other;
+    private boolean dirty;
+
+    private double[] qs;
+    private double[] xs;
+    private int index = 0;
+    private final double[] qCuts = {0.001, 0.01, 0.1, 0.2, 0.3, 0.5, 0.7, 0.8, 0.9, 0.99, 0.999};
+
+    @Setup
+    public void setup() {
+        gen = new Random();
+        td = create();
+        other = create();
+        for (int i = 0; i < SAMPLES; i++) {
+            td.add(gen.nextGaussian());
+            other.add(gen.nextGaussian() + 0.1);
+        }
+        td.compress();
+        other.compress();
+
+        qs = new double[QUERIES];
+        xs = new double[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            qs[i] = gen.nextDouble();
+            xs[i] = gen.nextGaussian();
+        }
+        dirty = state.equals("dirty");
+    }
+
+    private TDigest create() {
+        if (implementation.equals("AVL_TREE")) {
+            return new AVLTreeDigest(compression);
+        } else {
+            return new MergingDigest(compression);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void makeDirty() {
+        if (dirty) {
+            for (int i = 0; i < DIRTY_SAMPLES; i++) {
+                td.add(gen.nextGaussian());
+            }
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (QUERIES - 1);
+        return index;
+    }
+
+    @Benchmark
+    public double quantile() {
+        return td.quantile(qs[next()]);
+    }
+
+    @Benchmark
+    public double cdf() {
+        return td.cdf(xs[next()]);
+    }
+
+    @Benchmark
+    public double centroids() {
+        double sum = 0;
+        for (Centroid centroid : td.centroids()) {
+            sum += centroid.mean() * centroid.count();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int centroidCount() {
+        return td.centroidCount();
+    }
+
+    @Benchmark
+    public double ks() {
+        return Comparison.ks(td, other);
+    }
+
+    @Benchmark
+    public double compareChi2() {
+        return Comparison.compareChi2(td, other, qCuts);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + QueryBench.class.getSimpleName() + ".*")
+                .resultFormat(ResultFormatType.CSV)
+                .result("query-results.csv")
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning;
+
+import com.tdunning.math.stats.AVLTreeDigest;
+import com.tdunning.math.stats.FloatHistogram;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of encoding and decoding digests and histograms. The times are per digest and
+ * the GC profiler's gc.alloc.rate.norm line gives the bytes allocated per digest. The encoded sizes
+ * don't depend on timing at all so the main method works them out directly and writes them to
+ * serialization-sizes.csv next to the timings in serialization-results.csv.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 3, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+public class SerializationBench {
+    private static final int SAMPLES = 100000;
+    private static final int EXPORT_BATCH = 1000;
+
+    @State(Scope.Thread)
+    public static class DigestState {
+        @Param({"100", "300", "1000"})
+        public double compression;
+
+        @Param({"MERGE", "AVL_TREE"})
+        public String implementation;
+
+        TDigest td;
+        ByteBuffer buf;
+        ByteBuffer verbose;
+        ByteBuffer small;
+        byte[] serialized;
+
+        @Setup
+        public void setup() throws IOException {
+            td = digest(implementation, compression);
+            buf = ByteBuffer.allocate(td.byteSize());
+
+            verbose = ByteBuffer.allocate(td.byteSize());
+            td.asBytes(verbose);
+            verbose.flip();
+            small = ByteBuffer.allocate(td.smallByteSize());
+            td.asSmallBytes(small);
+            small.flip();
+            serialized = serialize(td);
+        }
+
+        TDigest fromBytes(ByteBuffer in) {
+            in.rewind();
+            if (td instanceof AVLTreeDigest) {
+                return AVLTreeDigest.fromBytes(in);
+            } else {
+                return MergingDigest.fromBytes(in);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HistogramState {
+        @Param({"20", "50", "100"})
+        public int binsPerDecade;
+
+        FloatHistogram fh;
+        FloatHistogram target;
+        byte[] serialized;
+
+        @Setup
+        public void setup() throws IOException {
+            fh = histogram(binsPerDecade);
+            target = new FloatHistogram(0.1, 10000, binsPerDecade);
+            serialized = writeHistogram(fh);
+        }
+    }
+
+    /**
+     * A batch of digests on their way out to a file or socket. The channel just throws the
+     * bytes away so only the cost of producing them shows.
+     */
+    @State(Scope.Thread)
+    public static class ExportState {
+        @Param({"100", "300"})
+        public double compression;
+
+        List<MergingDigest> digests = new ArrayList<>();
+        ByteBuffer direct = ByteBuffer.allocateDirect(64 * 1024);
+        WritableByteChannel channel = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        @Setup
+        public void setup() {
+            Random gen = new Random();
+            for (int i = 0; i < EXPORT_BATCH; i++) {
+                MergingDigest digest = new MergingDigest(compression);
+                for (int j = 0; j < 1000; j++) {
+                    digest.add(gen.nextGaussian());
+                }
+                digests.add(digest);
+            }
+        }
+    }
+
+    private static TDigest digest(String implementation, double compression) {
+        Random gen = new Random();
+        TDigest r;
+        if (implementation.equals("AVL_TREE")) {
+            r = new AVLTreeDigest(compression);
+        } else {
+            r = new MergingDigest(compression);
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            r.add(gen.nextGaussian());
+        }
+        r.compress();
+        return r;
+    }
+
+    private static FloatHistogram histogram(int binsPerDecade) {
+        Random gen = new Random();
+        FloatHistogram r = new FloatHistogram(0.1, 10000, binsPerDecade);
+        for (int i = 0; i < SAMPLES; i++) {
+            r.add(Math.exp(4 * gen.nextDouble()));
+        }
+        return r;
+    }
+
+    private static byte[] serialize(Object x) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(x);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] writeHistogram(FloatHistogram fh) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        fh.writeObject(out);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer asBytes(DigestState state) {
+        state.buf.clear();
+        state.td.asBytes(state.buf);
+        return state.buf;
+    }
+
+    @Benchmark
+    public ByteBuffer asSmallBytes(DigestState state) {
+        state.buf.clear();
+        state.td.asSmallBytes(state.buf);
+        return state.buf;
+    }
+
+    @Benchmark
+    public TDigest fromBytes(DigestState state) {
+        return state.fromBytes(state.verbose);
+    }
+
+    @Benchmark
+    public TDigest fromSmallBytes(DigestState state) {
+        return state.fromBytes(state.small);
+    }
+
+    @Benchmark
+    public byte[] javaSerialize(DigestState state) throws IOException {
+        return serialize(state.td);
+    }
+
+    @Benchmark
+    public Object javaDeserialize(DigestState state) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state.serialized));
+        return in.readObject();
+    }
+
+    /**
+     * Sizes each digest, gives it a buffer of its own and writes it out, which compresses twice.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EXPORT_BATCH)
+    public void exportSized(ExportState state) throws IOException {
+        for (MergingDigest digest : state.digests) {
+            ByteBuffer buf = ByteBuffer.allocate(digest.byteSize());
+            digest.asBytes(buf);
+            buf.flip();
+            state.channel.write(buf);
+        }
+    }
+
+    /**
+     * Streams the whole batch through one reused direct buffer.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EXPORT_BATCH)
+    public void exportStreamed(ExportState state) throws IOException {
+        MergingDigest.writeTo(state.channel, state.digests, MergingDigest.Encoding.VERBOSE_ENCODING, state.direct);
+    }
+
+    @Benchmark
+    public byte[] histogramWrite(HistogramState state) throws IOException {
+        return writeHistogram(state.fh);
+    }
+
+    @Benchmark
+    public FloatHistogram histogramRead(HistogramState state) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(state.serialized));
+        state.target.readObject(in);
+        return state.target;
+    }
+
+    private static void writeSizes(String file) throws IOException {
+        PrintWriter out = new PrintWriter(file);
+        try {
+            out.println("format,implementation,param,bytes");
+            for (String implementation : new String[]{"MERGE", "AVL_TREE"}) {
+                for (double compression : new double[]{100, 300, 1000}) {
+                    TDigest td = digest(implementation, compression);
+                    out.printf("asBytes,%s,%.0f,%d\n", implementation, compression, td.byteSize());
+                    out.printf("asSmallBytes,%s,%.0f,%d\n", implementation, compression, td.smallByteSize());
+                    out.printf("java,%s,%.0f,%d\n", implementation, compression, serialize(td).length);
+                }
+            }
+            for (int binsPerDecade : new int[]{20, 50, 100}) {
+                out.printf("writeObject,FloatHistogram,%d,%d\n", binsPerDecade, writeHistogram(histogram(binsPerDecade)).length);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        writeSizes("serialization-sizes.csv");
+
+        Options opt = new OptionsBuilder()
+                .include(".*" + SerializationBench.class.getSimpleName() + ".*")
+                .resultFormat(ResultFormatType.CSV)
+                .result("serialization-results.csv")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
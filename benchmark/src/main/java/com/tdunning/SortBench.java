@@ -36,6 +36,10 @@ import java.util.concurrent.TimeUnit;
 public class SortBench {
     private final int size = 100000;
     private final double[] values = new double[size];
+    private final double[] weights = new double[size];
+    private final double[] workValues = new double[size];
+    private final double[] workWeights = new double[size];
+    private final int[] order = new int[size];
 
     @Param({"0", "1", "-1"})
     public int sortDirection;
@@ -45,6 +49,7 @@ public class SortBench {
         Random prng = new Random(999983);
         for (int i = 0; i < size; i++) {
             values[i] = prng.nextDouble();
+            weights[i] = 1 + prng.nextInt(5);
         }
         if (sortDirection > 0) {
             Arrays.sort(values);
@@ -62,4 +67,17 @@ public class SortBench {
         }
         Sort.sort(order, values, null, values.length);
     }
+
+    @Benchmark
+    public void stableSort() {
+        Sort.stableSort(order, values, size);
+    }
+
+    @Benchmark
+    public void radixSort() {
+        // radix sort works in place so it needs a fresh copy each time
+        System.arraycopy(values, 0, workValues, 0, size);
+        System.arraycopy(weights, 0, workWeights, 0, size);
+        Sort.radixSort(workValues, workWeights, size);
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import com.tdunning.math.stats.WindowedDigest;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times asking for the p99 over the last minute, with a minute made of 60 one second slots.
+ * <p>
+ * handRolled keeps its own ring of slot digests and merges all of them with
+ * {@link TDigest#add(List)} on every query. windowed asks a {@link WindowedDigest} instead. Both
+ * see one new sample between queries, which is the usual case of many queries per second.
+ * windowedRotating moves to a new, full slot before every query so the older slots have to be
+ * merged again each time, which is the worst case for the window.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Thread)
+public class WindowBench {
+    private static final int SLOTS = 60;
+    private static final int SLOT_SAMPLES = 1000;
+
+    @Param({"100", "300"})
+    public double compression;
+
+    private Random gen;
+    private List<MergingDigest> ring;
+    private ManualWindow window;
+    private double[] batch = new double[SLOT_SAMPLES];
+
+    /**
+     * A window on a clock that only moves when told to.
+     */
+    private static class ManualWindow extends WindowedDigest {
+        long now = 0;
+
+        ManualWindow(double compression) {
+            super(compression, SLOTS, 1000);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        gen = new Random();
+        ring = new ArrayList<>();
+        window = new ManualWindow(compression);
+        for (int i = 0; i < SLOTS; i++) {
+            MergingDigest slot = new MergingDigest(compression);
+            fillBatch();
+            slot.add(batch, 0, SLOT_SAMPLES);
+            ring.add(slot);
+            if (i > 0) {
+                window.now += 1000;
+            }
+            window.add(batch, 0, SLOT_SAMPLES);
+        }
+    }
+
+    private void fillBatch() {
+        for (int i = 0; i < SLOT_SAMPLES; i++) {
+            batch[i] = gen.nextGaussian();
+        }
+    }
+
+    @Benchmark
+    public double handRolled() {
+        ring.get(SLOTS - 1).add(gen.nextGaussian());
+        MergingDigest merged = new MergingDigest(compression);
+        merged.add(ring);
+        return merged.quantile(0.99);
+    }
+
+    @Benchmark
+    public double windowed() {
+        window.add(gen.nextGaussian());
+        return window.quantile(0.99);
+    }
+
+    /**
+     * A separate window that moves to a fresh slot full of samples before every call. The
+     * filling isn't timed.
+     */
+    @State(Scope.Thread)
+    public static class Rotating {
+        @Param({"100", "300"})
+        public double compression;
+
+        private Random gen = new Random();
+        private ManualWindow window;
+        private double[] batch = new double[SLOT_SAMPLES];
+
+        @Setup
+        public void setup() {
+            window = new ManualWindow(compression);
+            for (int i = 0; i < SLOTS; i++) {
+                rotate();
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void rotate() {
+            window.now += 1000;
+            for (int i = 0; i < SLOT_SAMPLES; i++) {
+                batch[i] = gen.nextGaussian();
+            }
+            window.add(batch, 0, SLOT_SAMPLES);
+        }
+    }
+
+    @Benchmark
+    public double windowedRotating(Rotating state) {
+        return state.window.quantile(0.99);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + WindowBench.class.getSimpleName() + ".*")
+                .resultFormat(ResultFormatType.CSV)
+                .result("window-results.csv")
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -36,7 +36,7 @@ final class AVLGroupTree extends AbstractCollection<Centroid> implements Seriali
     private double[] centroids;
     private int[] counts;
     private List<Double>[] datas;
-    private int[] aggregatedCounts;
+    private long[] aggregatedCounts;
     private final IntAVLTree tree;
 
     AVLGroupTree() {
@@ -98,7 +98,7 @@ final class AVLGroupTree extends AbstractCollection<Centroid> implements Seriali
         };
         centroids = new double[tree.capacity()];
         counts = new int[tree.capacity()];
-        aggregatedCounts = new int[tree.capacity()];
+        aggregatedCounts = new long[tree.capacity()];
         if (record) {
             @SuppressWarnings("unchecked")
             final List<Double>[] datas = new List[tree.capacity()];
@@ -113,6 +113,17 @@ final class AVLGroupTree extends AbstractCollection<Centroid> implements Seriali
         return tree.size();
     }
 
+    /**
+     * Removes every centroid but keeps the storage for reuse.
+     */
+    public void clear() {
+        tree.clear();
+        if (datas != null) {
+            // let go of the histories
+            Arrays.fill(datas, null);
+        }
+    }
+
     /**
      * Return the previous node.
      */
@@ -176,6 +187,10 @@ final class AVLGroupTree extends AbstractCollection<Centroid> implements Seriali
             if (datas != null) {
                 datas[node] = data;
             }
+            // the tree shape is unchanged, but the counts aggregated above this node are not
+            for (int n = node; n != IntAVLTree.NIL; n = tree.parent(n)) {
+                tree.fixAggregates(n);
+            }
         } else {
             // have to do full scale update
             this.centroid = centroid;
@@ -299,7 +314,7 @@ final class AVLGroupTree extends AbstractCollection<Centroid> implements Seriali
     /**
      * Return the total count of points that have been added to the tree.
      */
-    public int sum() {
+    public long sum() {
         return aggregatedCounts[tree.root()];
     }
 
@@ -17,10 +17,12 @@
 
 package com.tdunning.math.stats;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
@@ -29,7 +31,8 @@ import static com.tdunning.math.stats.IntAVLTree.NIL;
 public class AVLTreeDigest extends AbstractTDigest {
     final Random gen = new Random();
     private final double compression;
-    private AVLGroupTree summary;
+    // written out centroid by centroid rather than as a tree, see writeObject
+    private transient AVLGroupTree summary;
 
     private long count = 0; // package private for testing
 
@@ -67,6 +70,14 @@ public class AVLTreeDigest extends AbstractTDigest {
         return super.recordAllData();
     }
 
+    @Override
+    public void clear() {
+        summary.clear();
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
     @Override
     public int centroidCount() {
         return summary.size();
@@ -290,87 +301,55 @@ public class AVLTreeDigest extends AbstractTDigest {
             assert x >= firstMean;
             assert x <= lastMean;
 
-            // we scan a across the centroids
-            Iterator<Centroid> it = values.iterator();
-            Centroid a = it.next();
-            double aMean = a.mean();
-            double aWeight = a.count();
-
-            if (x == aMean) {
-                return aWeight / 2.0 / size();
+            // rather than scanning from the first centroid, find the last centroid a to the left
+            // of x and use the counts aggregated in the tree for the weight before it
+            int aNode = values.floor(x);
+            if (aNode == NIL) {
+                // nothing is strictly to the left so x is at the first centroid
+                assert x == firstMean;
+                return values.count(first) / 2.0 / size();
             }
-            assert x > aMean;
-
-            // b is the look-ahead to the next centroid
-            Centroid b = it.next();
-            double bMean = b.mean();
-            double bWeight = b.count();
-
-            assert bMean >= aMean;
-
-            double weightSoFar = 0;
-
-            // scan to last element
-            while (bWeight > 0) {
-                assert x > aMean;
-                if (x == bMean) {
-                    assert bMean > aMean;
-                    weightSoFar += aWeight;
-                    while (it.hasNext()) {
-                        b = it.next();
-                        if (x == b.mean()) {
-                            bWeight += b.count();
-                        } else {
-                            break;
-                        }
-                    }
-                    return (weightSoFar + bWeight / 2.0) / size();
-                }
-                assert x < bMean || x > bMean;
-
-                if (x < bMean) {
-                    // we are strictly between a and b
-                    assert aMean < bMean;
-                    if (aWeight == 1) {
-                        // but a might be a singleton
-                        if (bWeight == 1) {
-                            // we have passed all of a, but none of b, no interpolation
-                            return (weightSoFar + 1.0) / size();
-                        } else {
-                            // only get to interpolate b's weight because a is a singleton and to our left
-                            double partialWeight = (x - aMean) / (bMean - aMean) * bWeight / 2.0;
-                            return (weightSoFar + 1.0 + partialWeight) / size();
-                        }
-                    } else if (bWeight == 1) {
-                        // only get to interpolate a's weight because b is a singleton
-                        double partialWeight = (x - aMean) / (bMean - aMean) * aWeight / 2.0;
-                        // half of a is to left of aMean, and half is interpolated
-                        return (weightSoFar + aWeight / 2.0 + partialWeight) / size();
-                    } else {
-                        // neither is singleton
-                        double partialWeight = (x - aMean) / (bMean - aMean) * (aWeight + bWeight) / 2.0;
-                        return (weightSoFar + aWeight / 2.0 + partialWeight) / size();
-                    }
-                }
+            double aMean = values.mean(aNode);
+            double aWeight = values.count(aNode);
+            double weightSoFar = values.headSum(aNode);
+
+            // b is the next centroid, which must exist because x <= lastMean
+            int bNode = values.next(aNode);
+            assert bNode != NIL;
+            double bMean = values.mean(bNode);
+            double bWeight = values.count(bNode);
+            assert x > aMean && x <= bMean;
+
+            if (x == bMean) {
                 weightSoFar += aWeight;
+                for (bNode = values.next(bNode); bNode != NIL && values.mean(bNode) == x; bNode = values.next(bNode)) {
+                    bWeight += values.count(bNode);
+                }
+                return (weightSoFar + bWeight / 2.0) / size();
+            }
 
-                assert x > bMean;
-
-                if (it.hasNext()) {
-                    aMean = bMean;
-                    aWeight = bWeight;
-
-                    b = it.next();
-                    bMean = b.mean();
-                    bWeight = b.count();
-
-                    assert bMean >= aMean;
+            // we are strictly between a and b
+            assert aMean < bMean;
+            if (aWeight == 1) {
+                // but a might be a singleton
+                if (bWeight == 1) {
+                    // we have passed all of a, but none of b, no interpolation
+                    return (weightSoFar + 1.0) / size();
                 } else {
-                    bWeight = 0;
+                    // only get to interpolate b's weight because a is a singleton and to our left
+                    double partialWeight = (x - aMean) / (bMean - aMean) * bWeight / 2.0;
+                    return (weightSoFar + 1.0 + partialWeight) / size();
                 }
+            } else if (bWeight == 1) {
+                // only get to interpolate a's weight because b is a singleton
+                double partialWeight = (x - aMean) / (bMean - aMean) * aWeight / 2.0;
+                // half of a is to left of aMean, and half is interpolated
+                return (weightSoFar + aWeight / 2.0 + partialWeight) / size();
+            } else {
+                // neither is singleton
+                double partialWeight = (x - aMean) / (bMean - aMean) * (aWeight + bWeight) / 2.0;
+                return (weightSoFar + aWeight / 2.0 + partialWeight) / size();
             }
-            // shouldn't be possible because x <= lastMean
-            throw new IllegalStateException("Ran out of centroids");
         }
     }
 
@@ -446,44 +425,52 @@ public class AVLTreeDigest extends AbstractTDigest {
             // from the interpolation
             return weightedAverage(min, weightSoFar - index, values.mean(currentNode), index - 1);
         }
-        for (int i = 0; i < values.size() - 1; i++) {
-            int nextNode = values.next(currentNode);
+        // the centers of the nodes increase left to right, so we can use the counts
+        // aggregated in the tree to jump to the first node whose center is past index
+        int nextNode = values.floorSum((long) index);
+        if (values.headSum(nextNode) + values.count(nextNode) / 2.0 <= index) {
+            nextNode = values.next(nextNode);
+        }
+        if (nextNode != NIL) {
+            currentNode = values.prev(nextNode);
+            currentWeight = values.count(currentNode);
+            weightSoFar = values.headSum(currentNode) + currentWeight / 2.0;
             int nextWeight = values.count(nextNode);
             // this is the mass between current center and next center
             double dw = (currentWeight + nextWeight) / 2.0;
-            if (index < weightSoFar + dw) {
-                // index is bracketed between centroids
-
-                // deal with singletons if present
-                double leftExclusion = 0;
-                double rightExclusion = 0;
-                if (currentWeight == 1) {
-                    if (index < weightSoFar + 0.5) {
-                        return values.mean(currentNode);
-                    } else {
-                        leftExclusion = 0.5;
-                    }
+            assert index < weightSoFar + dw;
+            // index is bracketed between centroids
+
+            // deal with singletons if present
+            double leftExclusion = 0;
+            double rightExclusion = 0;
+            if (currentWeight == 1) {
+                if (index < weightSoFar + 0.5) {
+                    return values.mean(currentNode);
+                } else {
+                    leftExclusion = 0.5;
                 }
-                if (nextWeight == 1) {
-                    if (index >= weightSoFar + dw - 0.5) {
-                        return values.mean(nextNode);
-                    } else {
-                        rightExclusion = 0.5;
-                    }
+            }
+            if (nextWeight == 1) {
+                if (index >= weightSoFar + dw - 0.5) {
+                    return values.mean(nextNode);
+                } else {
+                    rightExclusion = 0.5;
                 }
-                // if both are singletons, we will have returned a result already
-                assert leftExclusion + rightExclusion < 1;
-                assert dw > 1;
-                // centroids i and i+1 bracket our current point
-                // we interpolate, but the weights are diminished if singletons are present
-                double w1 = index - weightSoFar - leftExclusion;
-                double w2 = weightSoFar + dw - index - rightExclusion;
-                return weightedAverage(values.mean(currentNode), w2, values.mean(nextNode), w1);
             }
-            weightSoFar += dw;
-            currentNode = nextNode;
-            currentWeight = nextWeight;
+            // if both are singletons, we will have returned a result already
+            assert leftExclusion + rightExclusion < 1;
+            assert dw > 1;
+            // centroids i and i+1 bracket our current point
+            // we interpolate, but the weights are diminished if singletons are present
+            double w1 = index - weightSoFar - leftExclusion;
+            double w2 = weightSoFar + dw - index - rightExclusion;
+            return weightedAverage(values.mean(currentNode), w2, values.mean(nextNode), w1);
         }
+        currentNode = values.last();
+        currentWeight = values.count(currentNode);
+        weightSoFar = values.headSum(currentNode) + currentWeight / 2.0;
+
         // index is in the right hand side of the last node, interpolate to max
         // we have already handled the case were last centroid is a singleton
         assert currentWeight > 1;
@@ -569,6 +556,35 @@ public class AVLTreeDigest extends AbstractTDigest {
         }
     }
 
+    /**
+     * Java serialization writes just the centroids. The tree is mostly spare capacity and links
+     * between nodes, all of which can be rebuilt from the centroids in order.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(summary.size());
+        for (Centroid centroid : summary) {
+            out.writeDouble(centroid.mean());
+            out.writeInt(centroid.count());
+            if (recordAllData) {
+                out.writeObject(centroid.data());
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        summary = new AVLGroupTree(recordAllData);
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            double mean = in.readDouble();
+            int count = in.readInt();
+            @SuppressWarnings("unchecked")
+            List<Double> data = recordAllData ? (List<Double>) in.readObject() : null;
+            summary.add(mean, count, data);
+        }
+    }
+
     /**
      * Reads a histogram from a byte buffer
      *
@@ -84,6 +84,32 @@ public abstract class AbstractTDigest extends TDigest {
         return z;
     }
 
+    /**
+     * Same as {@link #encode(ByteBuffer, int)} but for values that may need all 64 bits.
+     */
+    static void encodeLong(ByteBuffer buf, long n) {
+        while (n < 0 || n > 0x7f) {
+            buf.put((byte) (0x80 | (0x7f & n)));
+            n = n >>> 7;
+        }
+        buf.put((byte) n);
+    }
+
+    static long decodeLong(ByteBuffer buf) {
+        int v = buf.get();
+        long z = 0x7f & v;
+        int shift = 7;
+        while ((v & 0x80) != 0) {
+            if (shift > 63) {
+                throw new IllegalStateException("Shift too large in decode");
+            }
+            v = buf.get();
+            z += (long) (v & 0x7f) << shift;
+            shift += 7;
+        }
+        return z;
+    }
+
     abstract void add(double x, int w, Centroid base);
 
     /**
@@ -0,0 +1,316 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link MergingDigest} that does its merging on a background executor so that adding a sample
+ * never pays for a sort and merge.
+ * <p>
+ * Samples are collected in one of two plain arrays. When that buffer fills up, it is swapped with
+ * the spare and handed to the executor to be merged into an ordinary {@link MergingDigest} while
+ * new samples go into the other buffer. The only time {@link #add(double)} waits is when both
+ * buffers are full because the previous merge still hasn't finished. That back-pressure keeps
+ * memory bounded if the executor can't keep up.
+ * <p>
+ * Queries, merges with other digests and serialization wait for any merge in progress and then
+ * fold in whatever is in the current buffer on the calling thread.
+ * <p>
+ * Like {@link MergingDigest}, this class is not safe for use by more than one thread at a time.
+ * The background merge is the only exception and is fully synchronized with the owning thread.
+ * The queries are synchronized methods because they are shared with the digests that are made for
+ * concurrent use, but that only keeps queries from overlapping each other. Adds are not
+ * synchronized, so a query must not run while another thread is adding. Callers that want to add
+ * from one thread and query from another have to lock the digest around their adds as well. The
+ * lock is never contended otherwise and costs little next to folding in the current buffer.
+ */
+public class BackgroundMergingDigest extends DelegatingDigest {
+    private final MergingDigest merged;
+    private final Executor executor;
+
+    // samples go into the active buffer while the spare may be waiting to be merged
+    private double[] activeMean;
+    private double[] activeWeight;
+    private int activeUsed = 0;
+    private double[] spareMean;
+    private double[] spareWeight;
+
+    // the merge of the spare buffer, if one has been started
+    private transient FutureTask<Void> pending = null;
+
+    /**
+     * Creates a digest that merges on a default executor shared by all such digests. It has one
+     * daemon thread per processor and its threads go away when they are idle.
+     *
+     * @param compression The compression factor
+     */
+    @SuppressWarnings("WeakerAccess")
+    public BackgroundMergingDigest(double compression) {
+        this(new MergingDigest(compression), DefaultExecutor.INSTANCE);
+    }
+
+    /**
+     * Creates a digest that merges on the given executor.
+     *
+     * @param compression The compression factor
+     * @param executor    Where merges will be run. A single thread is plenty for each digest.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public BackgroundMergingDigest(double compression, Executor executor) {
+        this(new MergingDigest(compression), executor);
+    }
+
+    private BackgroundMergingDigest(MergingDigest merged, Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Need an executor for background merges");
+        }
+        this.executor = executor;
+        this.merged = merged;
+        int capacity = merged.incomingCapacity();
+        activeMean = new double[capacity];
+        activeWeight = new double[capacity];
+        spareMean = new double[capacity];
+        spareWeight = new double[capacity];
+    }
+
+    @Override
+    public void add(double x, int w) {
+        checkValue(x);
+        if (recording) {
+            // history has to be attached as samples arrive so the buffers are bypassed
+            flush();
+            merged.add(x, w);
+            return;
+        }
+        activeMean[activeUsed] = x;
+        activeWeight[activeUsed] = w;
+        activeUsed++;
+        if (activeUsed == activeMean.length) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void add(double x) {
+        add(x, 1);
+    }
+
+    @Override
+    public void add(double[] values, int offset, int length) {
+        add(values, null, offset, length);
+    }
+
+    @Override
+    public void add(double[] values, double[] weights, int offset, int length) {
+        checkRange(values.length, offset, length);
+        if (weights != null) {
+            checkRange(weights.length, offset, length);
+        }
+        for (int i = offset; i < offset + length; i++) {
+            checkValue(values[i]);
+            if (weights != null) {
+                checkWeight(weights[i]);
+            }
+        }
+        if (recording) {
+            flush();
+            merged.add(values, weights, offset, length);
+            return;
+        }
+        int end = offset + length;
+        while (offset < end) {
+            int n = Math.min(activeMean.length - activeUsed, end - offset);
+            System.arraycopy(values, offset, activeMean, activeUsed, n);
+            if (weights == null) {
+                for (int i = activeUsed; i < activeUsed + n; i++) {
+                    activeWeight[i] = 1;
+                }
+            } else {
+                System.arraycopy(weights, offset, activeWeight, activeUsed, n);
+            }
+            activeUsed += n;
+            offset += n;
+            if (activeUsed == activeMean.length) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * Swaps the full active buffer with the spare and starts merging it in the background.
+     */
+    private void handOff() {
+        // back-pressure, the spare can't be reused until its merge is done
+        await();
+
+        final double[] fullMean = activeMean;
+        final double[] fullWeight = activeWeight;
+        final int n = activeUsed;
+        activeMean = spareMean;
+        activeWeight = spareWeight;
+        activeUsed = 0;
+        spareMean = fullMean;
+        spareWeight = fullWeight;
+
+        pending = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                merged.addBlock(fullMean, fullWeight, 0, n);
+            }
+        }, null);
+        executor.execute(pending);
+    }
+
+    /**
+     * Waits for the merge in progress, if any.
+     */
+    private void await() {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a background merge", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Background merge failed", e.getCause());
+            } finally {
+                if (pending.isDone()) {
+                    pending = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings the merged digest up to date with every sample added so far. This does merge work on
+     * the calling thread so it is only used for queries and other non-ingest operations.
+     */
+    private void flush() {
+        await();
+        if (activeUsed > 0) {
+            merged.addBlock(activeMean, activeWeight, 0, activeUsed);
+            activeUsed = 0;
+        }
+    }
+
+    @Override
+    MergingDigest digest() {
+        flush();
+        return merged;
+    }
+
+    @Override
+    public void add(List<? extends TDigest> others) {
+        flush();
+        merged.add(others);
+    }
+
+    @Override
+    public void add(TDigest other) {
+        flush();
+        merged.add(other);
+    }
+
+    /**
+     * Drops the samples waiting in the buffers as well. A merge that is already running has to
+     * finish first.
+     */
+    @Override
+    public void clear() {
+        await();
+        activeUsed = 0;
+        merged.clear();
+    }
+
+    @Override
+    public double compression() {
+        return merged.compression();
+    }
+
+    @Override
+    public void setScaleFunction(ScaleFunction scaleFunction) {
+        super.setScaleFunction(scaleFunction);
+        flush();
+        merged.setScaleFunction(scaleFunction);
+    }
+
+    /**
+     * Java serialization sends a {@link SerializationProxy} in place of the digest so that only
+     * the merged digest goes over the wire and not the sample buffers. The executor can't be sent,
+     * so the copy merges on the shared default executor.
+     */
+    private Object writeReplace() {
+        return new SerializationProxy(this);
+    }
+
+    private static final class SerializationProxy implements Serializable {
+        private final MergingDigest merged;
+        private final boolean recording;
+
+        SerializationProxy(BackgroundMergingDigest digest) {
+            merged = digest.digest();
+            recording = digest.recording;
+        }
+
+        private Object readResolve() {
+            BackgroundMergingDigest r = new BackgroundMergingDigest(merged, DefaultExecutor.INSTANCE);
+            r.setScaleFunction(merged.getScaleFunction());
+            r.recording = recording;
+            return r;
+        }
+    }
+
+    /**
+     * Runs the merges of digests that weren't given an executor of their own. The threads are
+     * daemons and go away after they have been idle for a second.
+     */
+    private static final class DefaultExecutor {
+        static final ThreadPoolExecutor INSTANCE;
+
+        static {
+            int n = Runtime.getRuntime().availableProcessors();
+            INSTANCE = new ThreadPoolExecutor(n, n, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "t-digest-merge-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Background" + merged;
+    }
+}
@@ -73,7 +73,12 @@ public class Centroid implements Comparable<Centroid>, Serializable {
 
     private void start(double x, int w, int id) {
         this.id = id;
-        add(x, w);
+        if (actualData != null) {
+            actualData.add(x);
+        }
+        // w * x / w need not round back to exactly x
+        centroid = x;
+        count = w;
     }
 
     public void add(double x, int w) {
@@ -0,0 +1,348 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lossless compact encoding of a sorted run of centroids, used by
+ * {@link MergingDigest#asCompactBytes(ByteBuffer)}.
+ * <p>
+ * Weights are almost always small whole numbers so they are written as variable length
+ * integers. If any weight has a fractional part they are all written as plain doubles instead,
+ * which is signalled by a flag byte in front.
+ * <p>
+ * Means are written as in the Gorilla time series database. Each mean is XOR'ed with the one
+ * before it. Since the means are sorted, neighbors usually share their sign, exponent and top
+ * bits of mantissa, so the XOR has a run of leading zeros, and whole numbers leave trailing zeros
+ * too. A repeated mean costs a single 0 bit. Otherwise the control bits 10 mean that the
+ * significant bits fit in the same window as last time and only those bits follow, while 11 is
+ * followed by 5 bits of leading zero count, 6 bits of length and then the significant bits.
+ * <p>
+ * There is also a lossy quantized form, used by {@link MergingDigest#asQuantizedBytes(ByteBuffer, int)},
+ * where each centroid takes a fixed number of bits. Means are rounded to one of 2^b evenly spaced
+ * points from min to max, so each mean is off by at most (max - min) / (2 (2^b - 1)). Min and max
+ * themselves come back exactly. Weights take 16 bits on a log scale. Whole weights below 4096 are
+ * exact and larger weights are rounded to whole numbers within 0.05%. The rounding error of each
+ * weight is carried into the next one so that cumulative weights, and thus ranks, stay within one
+ * rounding error of the truth and the total weight usually comes out exact.
+ */
+final class CentroidCodec {
+    private static final byte INTEGER_WEIGHTS = 0;
+    private static final byte DOUBLE_WEIGHTS = 1;
+
+    // weight codes below this are the weight itself, above it they are logarithmic up to 2^63
+    private static final int EXACT_WEIGHTS = 4096;
+    private static final int WEIGHT_BITS = 16;
+    private static final double LOG_STEP = Math.log(0x1p63 / EXACT_WEIGHTS) / ((1 << WEIGHT_BITS) - 1 - EXACT_WEIGHTS);
+
+    private CentroidCodec() {
+    }
+
+    /**
+     * Returns the number of bytes that {@link #write} will use.
+     */
+    static int byteSize(double[] mean, double[] weight, int n) {
+        int size = 1;
+        if (integerWeights(weight, n)) {
+            for (int i = 0; i < n; i++) {
+                size += varLongSize((long) weight[i]);
+            }
+        } else {
+            size += 8 * n;
+        }
+        BitWriter bits = new BitWriter(null);
+        writeMeans(bits, mean, n);
+        return size + bits.bytes();
+    }
+
+    static void write(ByteBuffer buf, double[] mean, double[] weight, int n) {
+        if (integerWeights(weight, n)) {
+            buf.put(INTEGER_WEIGHTS);
+            for (int i = 0; i < n; i++) {
+                AbstractTDigest.encodeLong(buf, (long) weight[i]);
+            }
+        } else {
+            buf.put(DOUBLE_WEIGHTS);
+            for (int i = 0; i < n; i++) {
+                buf.putDouble(weight[i]);
+            }
+        }
+        BitWriter bits = new BitWriter(buf);
+        writeMeans(bits, mean, n);
+        bits.flush();
+    }
+
+    static void read(ByteBuffer buf, double[] mean, double[] weight, int n) {
+        byte flag = buf.get();
+        if (flag == INTEGER_WEIGHTS) {
+            for (int i = 0; i < n; i++) {
+                weight[i] = AbstractTDigest.decodeLong(buf);
+            }
+        } else if (flag == DOUBLE_WEIGHTS) {
+            for (int i = 0; i < n; i++) {
+                weight[i] = buf.getDouble();
+            }
+        } else {
+            throw new IllegalStateException("Invalid weight format " + flag);
+        }
+
+        if (n == 0) {
+            return;
+        }
+        BitReader bits = new BitReader(buf);
+        long previous = bits.read(64);
+        mean[0] = Double.longBitsToDouble(previous);
+        int leading = 0;
+        int length = 0;
+        for (int i = 1; i < n; i++) {
+            if (bits.read(1) != 0) {
+                if (bits.read(1) != 0) {
+                    leading = (int) bits.read(5);
+                    length = (int) bits.read(6) + 1;
+                }
+                long xor = bits.read(length) << (64 - leading - length);
+                previous ^= xor;
+            }
+            mean[i] = Double.longBitsToDouble(previous);
+        }
+        bits.finish();
+    }
+
+    /**
+     * Returns the number of bytes that {@link #writeQuantized} will use.
+     */
+    static int quantizedByteSize(int n, int meanBits) {
+        return 1 + (int) (((long) n * (meanBits + WEIGHT_BITS) + 7) / 8);
+    }
+
+    /**
+     * Writes centroids with each mean rounded to meanBits bits within the range from min to max
+     * and each weight rounded to 16 bits.
+     */
+    static void writeQuantized(ByteBuffer buf, double[] mean, double[] weight, int n,
+                               double min, double max, int meanBits) {
+        if (meanBits < 1 || meanBits > 32) {
+            throw new IllegalArgumentException("Mean precision must be from 1 to 32 bits, not " + meanBits);
+        }
+        buf.put((byte) meanBits);
+        long top = (1L << meanBits) - 1;
+        double range = max - min;
+        BitWriter bits = new BitWriter(buf);
+        // the weight that has been lost (or gained) to rounding so far
+        double carry = 0;
+        for (int i = 0; i < n; i++) {
+            long q = 0;
+            if (range > 0) {
+                q = Math.max(0, Math.min(top, Math.round((mean[i] - min) / range * top)));
+            }
+            bits.write(q, meanBits);
+            // the last centroid is kept as is since merging expects the end centroids to be singletons
+            int w = quantizeWeight(weight[i] > 0 && i < n - 1 ? weight[i] + carry : weight[i]);
+            carry += weight[i] - weightOf(w);
+            bits.write(w, WEIGHT_BITS);
+        }
+        bits.flush();
+    }
+
+    static void readQuantized(ByteBuffer buf, double[] mean, double[] weight, int n, double min, double max) {
+        int meanBits = buf.get();
+        if (meanBits < 1 || meanBits > 32) {
+            throw new IllegalStateException("Invalid mean precision " + meanBits);
+        }
+        long top = (1L << meanBits) - 1;
+        double step = (max - min) / top;
+        BitReader bits = new BitReader(buf);
+        for (int i = 0; i < n; i++) {
+            long q = bits.read(meanBits);
+            // the top code is max exactly, the rest can't be allowed to round past it
+            mean[i] = q == top ? max : Math.min(max, min + q * step);
+            weight[i] = weightOf((int) bits.read(WEIGHT_BITS));
+        }
+        bits.finish();
+    }
+
+    static int quantizeWeight(double w) {
+        if (!(w > 0)) {
+            return 0;
+        } else if (w < EXACT_WEIGHTS - 0.5) {
+            // a tiny weight still has to count for something
+            return (int) Math.max(1, Math.round(w));
+        } else {
+            long q = EXACT_WEIGHTS + Math.round(Math.log(w / EXACT_WEIGHTS) / LOG_STEP);
+            return (int) Math.min(q, (1 << WEIGHT_BITS) - 1);
+        }
+    }
+
+    static double weightOf(int q) {
+        if (q < EXACT_WEIGHTS) {
+            return q;
+        } else {
+            return Math.rint(EXACT_WEIGHTS * Math.exp((q - EXACT_WEIGHTS) * LOG_STEP));
+        }
+    }
+
+    /**
+     * Weights can only be written as integers if all of them are whole numbers that fit in a long.
+     */
+    private static boolean integerWeights(double[] weight, int n) {
+        for (int i = 0; i < n; i++) {
+            double w = weight[i];
+            if (w < 0 || w >= 0x1p63 || w != Math.rint(w)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int varLongSize(long v) {
+        int size = 1;
+        while (v < 0 || v > 0x7f) {
+            v = v >>> 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeMeans(BitWriter bits, double[] mean, int n) {
+        if (n == 0) {
+            return;
+        }
+        long previous = Double.doubleToRawLongBits(mean[0]);
+        bits.write(previous, 64);
+        // no window until the first non-zero XOR
+        int leading = -1;
+        int trailing = 0;
+        for (int i = 1; i < n; i++) {
+            long current = Double.doubleToRawLongBits(mean[i]);
+            long xor = current ^ previous;
+            previous = current;
+            if (xor == 0) {
+                bits.write(0, 1);
+                continue;
+            }
+            // 5 bits of leading zero count only go to 31
+            int lz = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int tz = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && lz >= leading && tz >= trailing) {
+                bits.write(2, 2);
+                bits.write(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                int length = 64 - lz - tz;
+                bits.write(3, 2);
+                bits.write(lz, 5);
+                bits.write(length - 1, 6);
+                bits.write(xor >>> tz, length);
+                leading = lz;
+                trailing = tz;
+            }
+        }
+    }
+
+    /**
+     * Writes bits most significant first. With no buffer it only counts them.
+     */
+    private static final class BitWriter {
+        private final ByteBuffer buf;
+        private long pending = 0;
+        private int pendingBits = 0;
+        private long total = 0;
+
+        BitWriter(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * Writes the low n bits of v.
+         */
+        void write(long v, int n) {
+            total += n;
+            if (buf == null) {
+                return;
+            }
+            if (n > 32) {
+                write32(v >>> 32, n - 32);
+                write32(v, 32);
+            } else {
+                write32(v, n);
+            }
+        }
+
+        private void write32(long v, int n) {
+            pending = (pending << n) | (v & ((1L << n) - 1));
+            pendingBits += n;
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                buf.put((byte) (pending >>> pendingBits));
+            }
+        }
+
+        int bytes() {
+            return (int) ((total + 7) / 8);
+        }
+
+        /**
+         * Pads the last byte with zeros.
+         */
+        void flush() {
+            if (pendingBits > 0) {
+                buf.put((byte) (pending << (8 - pendingBits)));
+                pendingBits = 0;
+            }
+        }
+    }
+
+    private static final class BitReader {
+        private final ByteBuffer buf;
+        private long pending = 0;
+        private int pendingBits = 0;
+
+        BitReader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * Reads n bits, most significant first.
+         */
+        long read(int n) {
+            if (n > 32) {
+                long high = read32(n - 32);
+                return (high << 32) | read32(32);
+            } else {
+                return read32(n);
+            }
+        }
+
+        private long read32(int n) {
+            while (pendingBits < n) {
+                pending = (pending << 8) | (buf.get() & 0xff);
+                pendingBits += 8;
+            }
+            pendingBits -= n;
+            return (pending >>> pendingBits) & ((1L << n) - 1);
+        }
+
+        /**
+         * Drops the padding in the last byte. Whole bytes are never read ahead so there is
+         * nothing else to give back.
+         */
+        void finish() {
+            pendingBits = 0;
+        }
+    }
+}
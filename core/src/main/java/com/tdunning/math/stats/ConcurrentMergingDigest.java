@@ -0,0 +1,216 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A {@link MergingDigest} that can be fed by many threads at once.
+ * <p>
+ * Incoming samples are collected in a number of independent stripes, each of which is a small
+ * {@link MergingDigest} with its own unmerged buffer. A thread only ever locks its own stripe when
+ * adding a sample, so threads don't contend unless they happen to hash to the same stripe, and the
+ * sorting and merging of each stripe's buffer happens in parallel on the adding threads. The stripes
+ * are folded into the shared digest only when a query or a merge needs it.
+ * <p>
+ * Lock ordering is always this digest first, then stripe.
+ */
+public class ConcurrentMergingDigest extends DelegatingDigest {
+    private final MergingDigest merged;
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * Creates a concurrent digest with two stripes per available processor.
+     *
+     * @param compression The compression factor
+     */
+    @SuppressWarnings("WeakerAccess")
+    public ConcurrentMergingDigest(double compression) {
+        this(compression, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a concurrent digest with a specific number of stripes.
+     *
+     * @param compression The compression factor
+     * @param stripeCount How many independent input digests to use. This is rounded up to a power of two.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public ConcurrentMergingDigest(double compression, int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Need a positive stripe count, got " + stripeCount);
+        }
+        merged = new MergingDigest(compression);
+        int n = Integer.highestOneBit(stripeCount);
+        if (n < stripeCount) {
+            n *= 2;
+        }
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe(newStripeDigest(), newStripeDigest());
+        }
+        mask = n - 1;
+    }
+
+    private static final class Stripe implements Serializable {
+        // where samples go, only touched with the lock on the stripe held
+        MergingDigest digest;
+        // an empty digest to swap in when draining, only touched with the lock on the whole digest held
+        MergingDigest spare;
+
+        // keeps the headers of neighboring stripes off of each other's cache lines
+        @SuppressWarnings("unused")
+        long p0, p1, p2, p3, p4, p5, p6;
+
+        Stripe(MergingDigest digest, MergingDigest spare) {
+            this.digest = digest;
+            this.spare = spare;
+        }
+    }
+
+    private MergingDigest newStripeDigest() {
+        MergingDigest r = new MergingDigest(merged.compression());
+        r.setScaleFunction(scale);
+        return r;
+    }
+
+    private Stripe stripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    @Override
+    public void add(double x, int w) {
+        checkValue(x);
+        if (recording) {
+            // history has to be attached as samples arrive so the stripes are bypassed
+            synchronized (this) {
+                merged.add(x, w);
+            }
+            return;
+        }
+        Stripe s = stripe();
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (s) {
+            s.digest.add(x, w);
+        }
+    }
+
+    @Override
+    public void add(double x) {
+        add(x, 1);
+    }
+
+    @Override
+    public void add(double[] values, double[] weights, int offset, int length) {
+        if (recording) {
+            synchronized (this) {
+                merged.add(values, weights, offset, length);
+            }
+            return;
+        }
+        Stripe s = stripe();
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (s) {
+            s.digest.add(values, weights, offset, length);
+        }
+    }
+
+    @Override
+    public void add(double[] values, int offset, int length) {
+        add(values, null, offset, length);
+    }
+
+    @Override
+    public synchronized void add(List<? extends TDigest> others) {
+        merged.add(others);
+    }
+
+    @Override
+    public synchronized void add(TDigest other) {
+        merged.add(other);
+    }
+
+    /**
+     * Folds every stripe into the shared digest. Each stripe with data is swapped with its empty
+     * spare so that adds to it only wait for the swap and not for the merge, and the full digest
+     * is cleared to become the next spare. Nothing is allocated. Samples added concurrently with
+     * this may or may not be included.
+     */
+    @Override
+    MergingDigest digest() {
+        for (Stripe s : stripes) {
+            MergingDigest full = null;
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (s) {
+                if (s.digest.size() > 0) {
+                    full = s.digest;
+                    s.digest = s.spare;
+                }
+            }
+            if (full != null) {
+                full.drainTo(merged);
+                full.clear();
+                s.spare = full;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Samples added concurrently with this may or may not survive.
+     */
+    @Override
+    public synchronized void clear() {
+        merged.clear();
+        for (Stripe s : stripes) {
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (s) {
+                s.digest.clear();
+            }
+        }
+    }
+
+    @Override
+    public double compression() {
+        return merged.compression();
+    }
+
+    /**
+     * Samples already sitting in the stripes keep the scale function they were added with
+     * so this is best done before adding any data.
+     */
+    @Override
+    public synchronized void setScaleFunction(ScaleFunction scaleFunction) {
+        super.setScaleFunction(scaleFunction);
+        merged.setScaleFunction(scaleFunction);
+        for (Stripe s : stripes) {
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (s) {
+                s.digest.setScaleFunction(scaleFunction);
+            }
+            s.spare.setScaleFunction(scaleFunction);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Concurrent" + merged + "-" + stripes.length;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Base for digests that gather samples in some other way and answer queries from a
+ * {@link MergingDigest} that they bring up to date on demand.
+ * <p>
+ * Every query locks this digest, brings the {@link MergingDigest} up to date with
+ * {@link #digest()} and passes the query on. Serializing with {@link #asBytes(ByteBuffer)} or
+ * {@link #asSmallBytes(ByteBuffer)} gives the same format as {@link MergingDigest} so the result
+ * can be read with {@link MergingDigest#fromBytes(ByteBuffer)}.
+ */
+abstract class DelegatingDigest extends TDigest {
+    volatile boolean recording = false;
+
+    /**
+     * Brings the digest that answers queries up to date with every sample added so far. Always
+     * called with the lock on this digest held.
+     *
+     * @return The up to date digest.
+     */
+    abstract MergingDigest digest();
+
+    @Override
+    public synchronized void compress() {
+        digest().compress();
+    }
+
+    @Override
+    public synchronized FrozenDigest freeze() {
+        return digest().freeze();
+    }
+
+    @Override
+    public synchronized long size() {
+        return digest().size();
+    }
+
+    @Override
+    public synchronized double cdf(double x) {
+        return digest().cdf(x);
+    }
+
+    @Override
+    public synchronized double quantile(double q) {
+        return digest().quantile(q);
+    }
+
+    @Override
+    public synchronized double[] cdfs(double... xs) {
+        return digest().cdfs(xs);
+    }
+
+    @Override
+    public synchronized double[] quantiles(double... qs) {
+        return digest().quantiles(qs);
+    }
+
+    /**
+     * Returns a copy of the centroids since the digest behind them may change at any time.
+     */
+    @Override
+    public synchronized Collection<Centroid> centroids() {
+        return new ArrayList<>(digest().centroids());
+    }
+
+    @Override
+    public synchronized int byteSize() {
+        return digest().byteSize();
+    }
+
+    @Override
+    public synchronized int smallByteSize() {
+        return digest().smallByteSize();
+    }
+
+    @Override
+    public synchronized void asBytes(ByteBuffer buf) {
+        digest().asBytes(buf);
+    }
+
+    @Override
+    public synchronized void asSmallBytes(ByteBuffer buf) {
+        digest().asSmallBytes(buf);
+    }
+
+    /**
+     * Turns on data recording. This is for testing only and from then on every sample has to go
+     * straight to the digest that answers queries so that its history is kept.
+     */
+    @Override
+    public synchronized TDigest recordAllData() {
+        digest().recordAllData();
+        recording = true;
+        return this;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return recording;
+    }
+
+    @Override
+    public synchronized int centroidCount() {
+        return digest().centroidCount();
+    }
+
+    @Override
+    public synchronized double getMin() {
+        return digest().getMin();
+    }
+
+    @Override
+    public synchronized double getMax() {
+        return digest().getMax();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams {@link MergingDigest}s through channels in the verbose and small formats, a buffer at a
+ * time. See {@link MergingDigest#writeTo(WritableByteChannel, Iterable, MergingDigest.Encoding, ByteBuffer)}
+ * and {@link MergingDigest#readFrom(ReadableByteChannel, ByteBuffer)}.
+ */
+final class DigestChannels {
+    private DigestChannels() {
+    }
+
+    static void write(WritableByteChannel out, Iterable<MergingDigest> digests, MergingDigest.Encoding encoding,
+                      ByteBuffer buffer) throws IOException {
+        checkBlocking(out);
+        boolean small = isSmall(encoding);
+        if (buffer.capacity() < MergingDigest.MIN_CHANNEL_BUFFER) {
+            throw new IllegalArgumentException("Buffer needs at least " + MergingDigest.MIN_CHANNEL_BUFFER + " bytes");
+        }
+        int centroidSize = small ? 8 : 16;
+        buffer.clear();
+        for (MergingDigest digest : digests) {
+            digest.compress();
+            if (buffer.remaining() < MergingDigest.MIN_CHANNEL_BUFFER) {
+                drain(out, buffer);
+            }
+            digest.putHeader(buffer, small);
+            for (int i = 0; i < digest.lastUsedCell; i++) {
+                if (buffer.remaining() < centroidSize) {
+                    drain(out, buffer);
+                }
+                digest.putCentroid(buffer, small, i);
+            }
+        }
+        drain(out, buffer);
+    }
+
+    static MergingDigest read(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < MergingDigest.MIN_CHANNEL_BUFFER) {
+            throw new IllegalArgumentException("Buffer needs at least " + MergingDigest.MIN_CHANNEL_BUFFER + " bytes");
+        }
+        checkBlocking(in);
+        if (!fill(in, buffer, 4)) {
+            if (buffer.hasRemaining()) {
+                throw new EOFException("Channel ended part way through a digest");
+            }
+            return null;
+        }
+        int encoding = buffer.getInt(buffer.position());
+        boolean small = encoding == MergingDigest.Encoding.SMALL_ENCODING.code;
+        if (!small && encoding != MergingDigest.Encoding.VERBOSE_ENCODING.code) {
+            throw new IllegalStateException("Invalid format for serialized histogram");
+        }
+        require(in, buffer, small ? 30 : 32);
+        MergingDigest r = MergingDigest.emptyFor(buffer);
+        r.readHeader(buffer);
+        for (int i = 0; i < r.lastUsedCell; i++) {
+            require(in, buffer, small ? 8 : 16);
+            r.readCentroid(buffer, small, i);
+        }
+        return r;
+    }
+
+    private static boolean isSmall(MergingDigest.Encoding encoding) {
+        if (encoding == MergingDigest.Encoding.SMALL_ENCODING) {
+            return true;
+        } else if (encoding == MergingDigest.Encoding.VERBOSE_ENCODING) {
+            return false;
+        } else {
+            throw new IllegalArgumentException("Only the verbose and small formats can be streamed, not " + encoding);
+        }
+    }
+
+    /**
+     * The reads and writes below loop until they are done, which would spin forever on a
+     * non-blocking channel with nothing to give or no room to take.
+     */
+    private static void checkBlocking(Channel channel) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+    }
+
+    private static void drain(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (out.write(buffer) == 0) {
+                // a blocking channel always writes something
+                throw new IllegalBlockingModeException();
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads until the buffer has at least n bytes remaining.
+     *
+     * @return False if the channel ended first.
+     */
+    private static boolean fill(ReadableByteChannel in, ByteBuffer buffer, int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return true;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < n) {
+                int r = in.read(buffer);
+                if (r < 0) {
+                    return false;
+                } else if (r == 0) {
+                    // a blocking channel always reads something while there is room
+                    throw new IllegalBlockingModeException();
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+        return true;
+    }
+
+    private static void require(ReadableByteChannel in, ByteBuffer buffer, int n) throws IOException {
+        if (!fill(in, buffer, n)) {
+            throw new EOFException("Channel ended part way through a digest");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.util.Arrays;
+
+/**
+ * The state of a {@link MergingDigest} as of its last merge, which is what answers the queries of
+ * {@link MergingDigest#setConcurrentReads(boolean) concurrent readers}.
+ * <p>
+ * The centroid arrays are never changed once published. The pending samples are only ever
+ * appended to by the writer and pendingCount is written after the samples so that a reader sees
+ * complete entries up to the count it reads. The pending arrays start small and are replaced by
+ * larger copies as they fill so that a merge doesn't have to allocate a whole buffer's worth.
+ * <p>
+ * Readers keep a sorted copy of the pending samples. Each read only sorts the samples that
+ * have arrived since that copy was made and merges them in, so that repeated reads between
+ * merges stay cheap.
+ */
+final class DigestSnapshot {
+    private static final int INITIAL_PENDING = 32;
+
+    final SortedCentroids.Cumulative centroids;
+    final double totalWeight;
+    final double min;
+    final double max;
+
+    private final int maxPending;
+    private volatile Pending pending;
+    private volatile int pendingCount;
+    private volatile Sorted sorted;
+
+    DigestSnapshot(MergingDigest digest) {
+        int m = digest.lastUsedCell;
+        centroids = new SortedCentroids.Cumulative(Arrays.copyOf(digest.mean, m),
+                SortedCentroids.fillCumulative(digest.weight, m, new double[m + 1]), m);
+        totalWeight = digest.totalWeight;
+        min = digest.min;
+        max = digest.max;
+        maxPending = digest.tempMean.length;
+        int n = digest.tempUsed;
+        pending = new Pending(Math.min(maxPending, Math.max(INITIAL_PENDING, n)));
+        System.arraycopy(digest.tempMean, 0, pending.mean, 0, n);
+        System.arraycopy(digest.tempWeight, 0, pending.weight, 0, n);
+        pendingCount = n;
+    }
+
+    /**
+     * Called only by the writer.
+     */
+    void append(double[] m, double[] w, int start, int n) {
+        Pending p = pending;
+        if (start + n > p.mean.length) {
+            Pending bigger = new Pending(Math.min(maxPending, Math.max(2 * p.mean.length, start + n)));
+            System.arraycopy(p.mean, 0, bigger.mean, 0, start);
+            System.arraycopy(p.weight, 0, bigger.weight, 0, start);
+            pending = bigger;
+            p = bigger;
+        }
+        System.arraycopy(m, start, p.mean, start, n);
+        System.arraycopy(w, start, p.weight, start, n);
+        pendingCount = start + n;
+    }
+
+    /**
+     * Returns the pending samples in sorted order, at least as many of them as had arrived
+     * when this was called.
+     */
+    Sorted sorted() {
+        // the count has to be read before the arrays, any arrays seen after it hold at least that many samples
+        int n = pendingCount;
+        Sorted old = sorted;
+        if (old != null && old.count >= n) {
+            return old;
+        }
+        Pending p = pending;
+        int done = old == null ? 0 : old.count;
+        int fresh = n - done;
+        double[] v = Arrays.copyOfRange(p.mean, done, n);
+        double[] w = Arrays.copyOfRange(p.weight, done, n);
+        Sort.sort(v, w);
+
+        Sorted r = new Sorted(n);
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < n; k++) {
+            if (j >= fresh || (i < done && old.v[i] <= v[j])) {
+                r.v[k] = old.v[i];
+                r.w[k] = old.w[i];
+                i++;
+            } else {
+                r.v[k] = v[j];
+                r.w[k] = w[j];
+                j++;
+            }
+        }
+        SortedCentroids.fillCumulative(r.w, n, r.before);
+        // racing readers may each build a copy, any of them is good enough to keep
+        sorted = r;
+        return r;
+    }
+
+    long size() {
+        Sorted p = sorted();
+        return (long) (totalWeight + p.before[p.count]);
+    }
+
+    /**
+     * The pending samples are treated as exact point masses added to the distribution described
+     * by the centroids. Sorting them in among the centroids instead would spoil the interpolation
+     * across large centroids.
+     */
+    double cdf(double x) {
+        Sorted p = sorted();
+        int n = p.count;
+        double pendingTotal = p.before[n];
+        // pending weight strictly below x plus half of any exactly at x
+        int lo = p.centroids.firstNotBelow(x);
+        int hi = lo;
+        while (hi < n && p.v[hi] == x) {
+            hi++;
+        }
+        double below = p.before[lo] + (p.before[hi] - p.before[lo]) / 2;
+        if (totalWeight == 0) {
+            return pendingTotal == 0 ? Double.NaN : below / pendingTotal;
+        }
+        double merged = SortedCentroids.cdf(centroids, x, totalWeight, min, max);
+        return (merged * totalWeight + below) / (totalWeight + pendingTotal);
+    }
+
+    double quantile(double q) {
+        Sorted s = sorted();
+        int p = s.count;
+        if (p == 0) {
+            return SortedCentroids.quantile(centroids, q, totalWeight, min, max);
+        }
+        double[] v = s.v;
+        // pendingBefore[j] is the pending weight strictly before v[j]
+        double[] pendingBefore = s.before;
+        if (totalWeight == 0) {
+            // only singletons, so we can treat them as centroids
+            return SortedCentroids.quantile(s.centroids, q, pendingBefore[p], v[0], v[p - 1]);
+        }
+
+        double target = q * (totalWeight + pendingBefore[p]);
+
+        // find the first pending sample at which the combined weight reaches the target
+        int lo = 0;
+        int hi = p;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            double merged = SortedCentroids.cdf(centroids, v[mid], totalWeight, min, max);
+            if (merged * totalWeight + pendingBefore[mid + 1] >= target) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+
+        // the answer lies between v[lo - 1] and v[lo] where the pending weight is fixed
+        double r = (target - pendingBefore[lo]) / totalWeight;
+        double x = SortedCentroids.quantile(centroids, Math.max(0, Math.min(1, r)), totalWeight, min, max);
+        if (lo > 0) {
+            x = Math.max(x, v[lo - 1]);
+        }
+        if (lo < p) {
+            x = Math.min(x, v[lo]);
+        }
+        return x;
+    }
+
+    /**
+     * The samples added since the last merge, in arrival order.
+     */
+    private static final class Pending {
+        final double[] mean;
+        final double[] weight;
+
+        Pending(int capacity) {
+            mean = new double[capacity];
+            weight = new double[capacity];
+        }
+    }
+
+    /**
+     * The first count pending samples, sorted, with before[i] the weight of the samples before v[i].
+     * Never changed once built.
+     */
+    private static final class Sorted {
+        final int count;
+        final double[] v;
+        final double[] w;
+        final double[] before;
+        final SortedCentroids.Cumulative centroids;
+
+        Sorted(int count) {
+            this.count = count;
+            v = new double[count];
+            w = new double[count];
+            before = new double[count + 1];
+            centroids = new SortedCentroids.Cumulative(v, before, count);
+        }
+    }
+}
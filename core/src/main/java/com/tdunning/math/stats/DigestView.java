@@ -0,0 +1,308 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of a digest serialized by {@link MergingDigest#asBytes(ByteBuffer)} or
+ * {@link MergingDigest#asSmallBytes(ByteBuffer)} that answers queries straight from the bytes.
+ * <p>
+ * No digest is built and nothing is allocated. A query walks the centroids in the buffer from the
+ * left, keeping a running total of the weights, and stops as soon as it reaches the centroids
+ * around its answer. The interpolation between those centroids is the same code that
+ * {@link MergingDigest} uses. The total weight isn't part of the formats so the first query
+ * against a digest also adds up all of the weights once. That makes this a good fit for answering
+ * a few queries against each of a large number of stored digests, for instance in a memory mapped
+ * file.
+ * <p>
+ * The answers are exactly the same as those from the digest returned by
+ * {@link MergingDigest#fromBytes(ByteBuffer)}, at least until that digest is compressed and its
+ * min and max are adjusted to the rounded means of the small format.
+ * <p>
+ * The view reads the buffer with absolute gets starting at the buffer's position when it was
+ * wrapped and never moves the position. The bytes must not change while the view is in use. One
+ * view can be pointed at one digest after another with {@link #wrap(ByteBuffer)}.
+ */
+public final class DigestView extends SortedCentroids {
+    // header sizes for the two formats, see MergingDigest.asBytes and asSmallBytes
+    private static final int VERBOSE_HEADER = 32;
+    private static final int SMALL_HEADER = 30;
+
+    private ByteBuffer buf;
+    private int start;
+    private boolean small;
+    private int n;
+    private double min;
+    private double max;
+    private double compression;
+    // the total of all of the weights, NaN until the first time it is needed
+    private double totalWeight;
+
+    // where the last walk over the centroids stopped and the total weight before that centroid
+    // and the one before it
+    private int walked;
+    private double walkedWeight;
+    private double previousWeight;
+
+    /**
+     * Creates a view that must be pointed at a digest with {@link #wrap(ByteBuffer)} before use.
+     */
+    DigestView() {
+    }
+
+    /**
+     * Creates a view of the digest at the current position of a buffer.
+     *
+     * @param buf The buffer holding the serialized digest.
+     */
+    public DigestView(ByteBuffer buf) {
+        wrap(buf);
+    }
+
+    /**
+     * Points this view at the digest at the current position of a buffer.
+     *
+     * @param buf The buffer holding the serialized digest.
+     * @return This view.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public DigestView wrap(ByteBuffer buf) {
+        this.buf = buf;
+        this.start = buf.position();
+
+        int encoding = buf.getInt(start);
+        min = buf.getDouble(start + 4);
+        max = buf.getDouble(start + 12);
+        if (encoding == MergingDigest.Encoding.VERBOSE_ENCODING.code) {
+            small = false;
+            compression = buf.getDouble(start + 20);
+            n = buf.getInt(start + 28);
+        } else if (encoding == MergingDigest.Encoding.SMALL_ENCODING.code) {
+            small = true;
+            compression = buf.getFloat(start + 20);
+            n = buf.getShort(start + 28);
+        } else {
+            throw new IllegalStateException("Invalid format for serialized histogram");
+        }
+        if (n < 0 || start + byteSize() > buf.limit()) {
+            throw new IllegalArgumentException(String.format("Buffer too short for %d centroids", n));
+        }
+
+        totalWeight = Double.NaN;
+        walked = 0;
+        walkedWeight = 0;
+        return this;
+    }
+
+    @Override
+    int count() {
+        return n;
+    }
+
+    @Override
+    double weight(int i) {
+        return weightAt(buf, firstCentroid(), small, i);
+    }
+
+    @Override
+    double mean(int i) {
+        return meanAt(buf, firstCentroid(), small, i);
+    }
+
+    /**
+     * Returns the weight before centroid i. The queries only ever ask for the centroid where
+     * the last walk stopped or the one before it, anything else takes another walk.
+     */
+    @Override
+    double weightBefore(int i) {
+        if (i == walked - 1) {
+            return previousWeight;
+        }
+        if (i < walked) {
+            startWalk();
+        }
+        while (walked < i) {
+            step();
+        }
+        return walkedWeight;
+    }
+
+    @Override
+    int firstNotBelow(double x) {
+        startWalk();
+        while (walked < n && mean(walked) < x) {
+            step();
+        }
+        return walked;
+    }
+
+    @Override
+    int firstCenterAbove(double index) {
+        startWalk();
+        while (walked < n && walkedWeight + weight(walked) / 2 <= index) {
+            step();
+        }
+        return walked;
+    }
+
+    private void startWalk() {
+        walked = 0;
+        walkedWeight = 0;
+    }
+
+    private void step() {
+        // sum in the same order as MergingDigest so that the answers match to the last bit
+        previousWeight = walkedWeight;
+        walkedWeight += weight(walked);
+        walked++;
+    }
+
+    /**
+     * Reads the weight of centroid i of a serialized digest whose centroids start at first.
+     */
+    static double weightAt(ByteBuffer buf, int first, boolean small, int i) {
+        if (small) {
+            return buf.getFloat(first + 8 * i);
+        } else {
+            return buf.getDouble(first + 16 * i);
+        }
+    }
+
+    /**
+     * Reads the mean of centroid i of a serialized digest whose centroids start at first.
+     */
+    static double meanAt(ByteBuffer buf, int first, boolean small, int i) {
+        if (small) {
+            return buf.getFloat(first + 8 * i + 4);
+        } else {
+            return buf.getDouble(first + 16 * i + 8);
+        }
+    }
+
+    /**
+     * Returns the absolute offset of the first centroid in the buffer.
+     */
+    int firstCentroid() {
+        return start + (small ? SMALL_HEADER : VERBOSE_HEADER);
+    }
+
+    boolean isSmall() {
+        return small;
+    }
+
+    /**
+     * Returns the total weight without rounding it to a long.
+     */
+    double totalWeight() {
+        if (Double.isNaN(totalWeight)) {
+            // sum in the same order as MergingDigest so that the answers match to the last bit
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += weight(i);
+            }
+            totalWeight = sum;
+        }
+        return totalWeight;
+    }
+
+    /**
+     * Checks that the centroid means are in order. Round-off in a centroid update can very
+     * occasionally leave a mean slightly out of place.
+     */
+    boolean isSorted() {
+        for (int i = 1; i < n; i++) {
+            if (mean(i) < mean(i - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes used by the serialized digest so that the caller can skip
+     * over it to whatever follows.
+     *
+     * @return The length of the digest in bytes.
+     */
+    public int byteSize() {
+        if (small) {
+            return SMALL_HEADER + 8 * n;
+        } else {
+            return VERBOSE_HEADER + 16 * n;
+        }
+    }
+
+    /**
+     * Returns the number of samples represented by the digest.
+     *
+     * @return The sum of the weights of all centroids.
+     */
+    public long size() {
+        return (long) totalWeight();
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double compression() {
+        return compression;
+    }
+
+    public int centroidCount() {
+        return n;
+    }
+
+    /**
+     * Returns the fraction of all points added which are &le; x, using the same interpolation as
+     * {@link MergingDigest#cdf(double)}.
+     *
+     * @param x The cutoff for the cdf.
+     * @return The fraction of all data which is less or equal to x.
+     */
+    public double cdf(double x) {
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            throw new IllegalArgumentException(String.format("Invalid value: %f", x));
+        }
+        return SortedCentroids.cdf(this, x, totalWeight(), min, max);
+    }
+
+    /**
+     * Returns an estimate of a quantile using the same interpolation as
+     * {@link MergingDigest#quantile(double)}.
+     *
+     * @param q The quantile desired. Can be in the range [0,1].
+     * @return The estimated value at that quantile.
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("q should be in [0,1], got " + q);
+        }
+        return SortedCentroids.quantile(this, q, totalWeight(), min, max);
+    }
+
+    @Override
+    public String toString() {
+        return "DigestView-" + n;
+    }
+}
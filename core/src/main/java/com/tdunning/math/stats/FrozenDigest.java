@@ -0,0 +1,292 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An immutable t-digest for keeping large numbers of finished digests around for querying.
+ * <p>
+ * Only the centroid means, the cumulative centroid weights and the extreme values are kept. There
+ * are no buffers for incoming data so the memory cost is just two doubles per centroid. Everything
+ * a FrozenDigest reads is held in final fields that are set once in the constructor, so it can be
+ * shared between threads freely, even without any synchronization when it is handed over.
+ * <p>
+ * Queries use the same interpolation as {@link MergingDigest}. A FrozenDigest can be merged into
+ * other digests with {@link TDigest#add(TDigest)} or {@link TDigest#add(List)} and it serializes
+ * in the {@link MergingDigest} formats so {@link #fromBytes(ByteBuffer)} and
+ * {@link MergingDigest#fromBytes(ByteBuffer)} can both read the result.
+ * <p>
+ * Get one using {@link TDigest#freeze()}.
+ */
+public final class FrozenDigest extends TDigest {
+    private final double compression;
+    private final ScaleFunction scaleFunction;
+    // final copies of the extremes since the fields inherited from TDigest can't be final
+    private final double low;
+    private final double high;
+    private final double[] mean;
+    // cumulative[i] is the total weight of all centroids before i, cumulative[n] is the total weight
+    private final double[] cumulative;
+    // the two arrays above as seen by the interpolation shared with MergingDigest
+    private final SortedCentroids.Cumulative centroids;
+
+    FrozenDigest(double compression, ScaleFunction scale, double min, double max, double[] mean, double[] cumulative) {
+        assert cumulative.length == mean.length + 1;
+        this.compression = compression;
+        this.scaleFunction = scale;
+        this.low = min;
+        this.high = max;
+        this.mean = mean;
+        this.cumulative = cumulative;
+        this.centroids = new SortedCentroids.Cumulative(mean, cumulative, mean.length);
+    }
+
+    /**
+     * Copies the centroids of any other kind of digest.
+     */
+    FrozenDigest(TDigest source) {
+        Collection<Centroid> centroids = source.centroids();
+        int n = centroids.size();
+        this.compression = source.compression();
+        this.scaleFunction = source.scale;
+        this.low = source.getMin();
+        this.high = source.getMax();
+        this.mean = new double[n];
+        this.cumulative = new double[n + 1];
+        int i = 0;
+        for (Centroid c : centroids) {
+            mean[i] = c.mean();
+            cumulative[i + 1] = cumulative[i] + c.count();
+            i++;
+        }
+        this.centroids = new SortedCentroids.Cumulative(mean, cumulative, n);
+    }
+
+    /**
+     * Reads a digest in either of the {@link MergingDigest} formats.
+     *
+     * @param buf The buffer to read from.
+     * @return The frozen digest.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static FrozenDigest fromBytes(ByteBuffer buf) {
+        return MergingDigest.fromBytes(buf).freeze();
+    }
+
+    /**
+     * Copies the centroids into arrays for merging, returns the new offset.
+     */
+    int copyCentroids(double[] m, double[] w, int offset) {
+        System.arraycopy(mean, 0, m, offset, mean.length);
+        for (int i = 0; i < mean.length; i++) {
+            w[offset + i] = cumulative[i + 1] - cumulative[i];
+        }
+        return offset + mean.length;
+    }
+
+    @Override
+    public FrozenDigest freeze() {
+        return this;
+    }
+
+    @Override
+    public void add(double x, int w) {
+        throw new UnsupportedOperationException("Can't add to a frozen digest");
+    }
+
+    @Override
+    public void add(List<? extends TDigest> others) {
+        throw new UnsupportedOperationException("Can't add to a frozen digest");
+    }
+
+    @Override
+    public void add(double x) {
+        throw new UnsupportedOperationException("Can't add to a frozen digest");
+    }
+
+    @Override
+    public void add(TDigest other) {
+        throw new UnsupportedOperationException("Can't add to a frozen digest");
+    }
+
+    @Override
+    public void add(double[] values, int offset, int length) {
+        throw new UnsupportedOperationException("Can't add to a frozen digest");
+    }
+
+    @Override
+    public void add(double[] values, double[] weights, int offset, int length) {
+        throw new UnsupportedOperationException("Can't add to a frozen digest");
+    }
+
+    /**
+     * Does nothing since a frozen digest is already as compact as it will get.
+     */
+    @Override
+    public void compress() {
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("Can't clear a frozen digest");
+    }
+
+    @Override
+    public long size() {
+        return (long) cumulative[mean.length];
+    }
+
+    @Override
+    public double cdf(double x) {
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            throw new IllegalArgumentException(String.format("Invalid value: %f", x));
+        }
+        return SortedCentroids.cdf(centroids, x, cumulative[mean.length], low, high);
+    }
+
+    @Override
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("q should be in [0,1], got " + q);
+        }
+        return SortedCentroids.quantile(centroids, q, cumulative[mean.length], low, high);
+    }
+
+    @Override
+    public Collection<Centroid> centroids() {
+        return new AbstractCollection<Centroid>() {
+            @Override
+            public Iterator<Centroid> iterator() {
+                return new Iterator<Centroid>() {
+                    int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < mean.length;
+                    }
+
+                    @Override
+                    public Centroid next() {
+                        Centroid rc = new Centroid(mean[i], (int) (cumulative[i + 1] - cumulative[i]));
+                        i++;
+                        return rc;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("Default operation");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mean.length;
+            }
+        };
+    }
+
+    @Override
+    public double compression() {
+        return compression;
+    }
+
+    @Override
+    public int byteSize() {
+        return mean.length * 16 + 32;
+    }
+
+    @Override
+    public int smallByteSize() {
+        return mean.length * 8 + 30;
+    }
+
+    @Override
+    public void asBytes(ByteBuffer buf) {
+        buf.putInt(MergingDigest.Encoding.VERBOSE_ENCODING.code);
+        buf.putDouble(low);
+        buf.putDouble(high);
+        buf.putDouble(compression);
+        buf.putInt(mean.length);
+        for (int i = 0; i < mean.length; i++) {
+            buf.putDouble(cumulative[i + 1] - cumulative[i]);
+            buf.putDouble(mean[i]);
+        }
+    }
+
+    @Override
+    public void asSmallBytes(ByteBuffer buf) {
+        buf.putInt(MergingDigest.Encoding.SMALL_ENCODING.code);
+        buf.putDouble(low);
+        buf.putDouble(high);
+        buf.putFloat((float) compression);
+        // there is no buffer to describe, so ask for the default one when reading
+        buf.putShort((short) mean.length);
+        buf.putShort((short) -1);
+        buf.putShort((short) mean.length);
+        for (int i = 0; i < mean.length; i++) {
+            buf.putFloat((float) (cumulative[i + 1] - cumulative[i]));
+            buf.putFloat((float) mean[i]);
+        }
+    }
+
+    @Override
+    public TDigest recordAllData() {
+        throw new UnsupportedOperationException("Can't record data in a frozen digest");
+    }
+
+    @Override
+    public boolean isRecording() {
+        return false;
+    }
+
+    @Override
+    public int centroidCount() {
+        return mean.length;
+    }
+
+    @Override
+    public double getMin() {
+        return low;
+    }
+
+    @Override
+    public double getMax() {
+        return high;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public ScaleFunction getScaleFunction() {
+        return scaleFunction;
+    }
+
+    @Override
+    public void setScaleFunction(ScaleFunction scaleFunction) {
+        throw new UnsupportedOperationException("Can't change the scale function of a frozen digest");
+    }
+
+    @Override
+    public String toString() {
+        return "FrozenDigest-" + mean.length;
+    }
+}
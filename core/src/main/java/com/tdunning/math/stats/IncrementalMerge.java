@@ -0,0 +1,221 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+/**
+ * The state of an incremental merge of a {@link MergingDigest}, see
+ * {@link MergingDigest#setIncrementalMerge(int)}. The job's arrays are swapped with the incoming
+ * buffer when a job starts and with the centroids when it is done.
+ */
+final class IncrementalMerge {
+    private static final int IDLE = 0;
+    private static final int SORTING = 1;
+    private static final int MERGING = 2;
+
+    private final MergingDigest digest;
+    int stepsPerAdd;
+    // how many times a job had to be finished all at once
+    int lateJobs = 0;
+
+    // samples being merged. These are sorted back and forth between the job and scratch arrays
+    private double[] jobMean;
+    private double[] jobWeight;
+    private double[] scratchMean;
+    private double[] scratchWeight;
+    private int jobUsed = 0;
+    double jobWeightSum = 0;
+    // where the merge puts its centroids
+    private double[] nextMean;
+    private double[] nextWeight;
+
+    private int phase = IDLE;
+    // state of the merge sort, merging [lo, mid) with [mid, hi) in passes of increasing width
+    private int width;
+    private int lo;
+    private int mid;
+    private int hi;
+    private int left;
+    private int right;
+    private int out;
+    // state of the merge with the centroids
+    private int nextSample;
+    private int nextCentroid;
+    private int offered;
+    private MergingDigest.Compressor compressor;
+
+    IncrementalMerge(MergingDigest digest) {
+        this.digest = digest;
+        jobMean = new double[digest.tempMean.length];
+        jobWeight = new double[digest.tempMean.length];
+        scratchMean = new double[digest.tempMean.length];
+        scratchWeight = new double[digest.tempMean.length];
+        nextMean = new double[digest.mean.length];
+        nextWeight = new double[digest.mean.length];
+    }
+
+    /**
+     * Turns the incoming buffer into a merge job.
+     */
+    void start() {
+        if (phase != IDLE) {
+            // the last job is normally long done by now, if not the budget is too small
+            lateJobs++;
+            finish();
+        }
+        double[] t = jobMean;
+        jobMean = digest.tempMean;
+        digest.tempMean = t;
+        t = jobWeight;
+        jobWeight = digest.tempWeight;
+        digest.tempWeight = t;
+        jobUsed = digest.tempUsed;
+        jobWeightSum = digest.unmergedWeight;
+        digest.tempUsed = 0;
+        digest.tempRuns = 0;
+        digest.unmergedWeight = 0;
+
+        phase = SORTING;
+        width = 1;
+        lo = 0;
+        mid = 0;
+        hi = 0;
+        out = 0;
+    }
+
+    void finish() {
+        while (phase != IDLE) {
+            advance(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Drops the job along with its samples.
+     */
+    void abandon() {
+        phase = IDLE;
+        compressor = null;
+        jobUsed = 0;
+        jobWeightSum = 0;
+    }
+
+    /**
+     * Does up to the given number of steps of the job.
+     */
+    void advance(int steps) {
+        while (steps > 0 && phase == SORTING) {
+            if (width >= jobUsed) {
+                startMerge();
+                break;
+            }
+            if (out == hi) {
+                if (hi >= jobUsed) {
+                    // end of a pass, the sorted runs are now in the scratch arrays
+                    double[] t = jobMean;
+                    jobMean = scratchMean;
+                    scratchMean = t;
+                    t = jobWeight;
+                    jobWeight = scratchWeight;
+                    scratchWeight = t;
+                    width *= 2;
+                    lo = 0;
+                    hi = 0;
+                    out = 0;
+                    continue;
+                }
+                lo = hi;
+                mid = Math.min(lo + width, jobUsed);
+                hi = Math.min(lo + 2 * width, jobUsed);
+                left = lo;
+                right = mid;
+            }
+            // ties go to the left so that the sort is stable
+            int end = out + Math.min(steps, hi - out);
+            steps -= end - out;
+            while (out < end) {
+                int from;
+                if (right >= hi || (left < mid && jobMean[left] <= jobMean[right])) {
+                    from = left++;
+                } else {
+                    from = right++;
+                }
+                scratchMean[out] = jobMean[from];
+                scratchWeight[out] = jobWeight[from];
+                out++;
+            }
+        }
+
+        if (phase == MERGING) {
+            int total = jobUsed + digest.lastUsedCell;
+            int end = (int) Math.min((long) offered + steps, total);
+            for (; offered < end; offered++) {
+                double x;
+                double w;
+                // new samples come before old centroids on ties just as in an ordinary merge
+                if (nextCentroid >= digest.lastUsedCell
+                        || (nextSample < jobUsed && jobMean[nextSample] <= digest.mean[nextCentroid])) {
+                    x = jobMean[nextSample];
+                    w = jobWeight[nextSample];
+                    nextSample++;
+                } else {
+                    x = digest.mean[nextCentroid];
+                    w = digest.weight[nextCentroid];
+                    nextCentroid++;
+                }
+                if (offered == 0) {
+                    compressor = new MergingDigest.Compressor(nextMean, nextWeight, digest.scale, digest.compression,
+                            digest.totalWeight + jobWeightSum, x, w);
+                } else {
+                    // force last centroid to never merge
+                    compressor.add(x, w, offered == 1 || offered == total - 1);
+                }
+            }
+            if (offered == total) {
+                finishMerge();
+            }
+        }
+    }
+
+    private void startMerge() {
+        phase = MERGING;
+        nextSample = 0;
+        nextCentroid = 0;
+        offered = 0;
+        if (jobUsed + digest.lastUsedCell == 0) {
+            finishMerge();
+        }
+    }
+
+    private void finishMerge() {
+        if (compressor != null) {
+            double[] t = digest.mean;
+            digest.mean = nextMean;
+            nextMean = t;
+            t = digest.weight;
+            digest.weight = nextWeight;
+            nextWeight = t;
+            digest.lastUsedCell = compressor.last + 1;
+            compressor = null;
+        }
+        digest.totalWeight += jobWeightSum;
+        jobUsed = 0;
+        jobWeightSum = 0;
+        digest.cumulativeValid = false;
+        digest.mergeCount++;
+        phase = IDLE;
+    }
+}
@@ -93,6 +93,19 @@ abstract class IntAVLTree implements Serializable {
         return nodeAllocator.size();
     }
 
+    /**
+     * Removes every node but keeps the storage for reuse.
+     */
+    public void clear() {
+        root = NIL;
+        nodeAllocator.clear();
+        // new nodes are expected to start out unlinked
+        Arrays.fill(parent, NIL);
+        Arrays.fill(left, NIL);
+        Arrays.fill(right, NIL);
+        Arrays.fill(depth, (byte) 0);
+    }
+
     /**
      * Return the parent of the provided node.
      */
@@ -543,6 +556,10 @@ abstract class IntAVLTree implements Serializable {
             return stack[--size];
         }
 
+        void clear() {
+            size = 0;
+        }
+
         void push(int v) {
             if (size >= stack.length) {
                 final int newLength = oversize(size + 1);
@@ -580,6 +597,11 @@ abstract class IntAVLTree implements Serializable {
             return nextNode - releasedNodes.size() - 1;
         }
 
+        void clear() {
+            nextNode = NIL + 1;
+            releasedNodes.clear();
+        }
+
     }
 
 }
@@ -17,9 +17,14 @@
 
 package com.tdunning.math.stats;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -62,40 +67,81 @@ import java.util.List;
  * what the AVLTreeDigest uses and no dynamic allocation is required at all.
  */
 public class MergingDigest extends AbstractTDigest {
-    private int mergeCount = 0;
+    int mergeCount = 0;
 
     private final double publicCompression;
-    private final double compression;
+    final double compression;
 
     // points to the first unused centroid
-    private int lastUsedCell;
+    int lastUsedCell;
 
     // sum_i weight[i]  See also unmergedWeight
-    private double totalWeight = 0;
+    double totalWeight = 0;
 
     // number of points that have been added to each merged centroid
-    private final double[] weight;
+    double[] weight;
     // mean of points added to each merged centroid
-    private final double[] mean;
+    double[] mean;
 
     // history of all data added to centroids (for testing purposes)
     private List<List<Double>> data = null;
 
     // sum_i tempWeight[i]
-    private double unmergedWeight = 0;
+    double unmergedWeight = 0;
 
     // this is the index of the next temporary centroid
     // this is a more Java-like convention than lastUsedCell uses
-    private int tempUsed = 0;
-    private final double[] tempWeight;
-    private final double[] tempMean;
+    int tempUsed = 0;
+    double[] tempWeight;
+    double[] tempMean;
     private List<List<Double>> tempData = null;
 
+    // the incoming buffer is kept track of as ascending runs so that nearly sorted input can be
+    // merged without sorting. tempRuns is how many runs there are and runStarts has where
+    // each one starts. Once there are more than MAX_RUNS we stop keeping track. The extra entry
+    // is for our own centroids, which are one more run in a merge, and runNext and runEnd are
+    // scratch space for merging the runs
+    int tempRuns = 0;
+    private final int[] runStarts = new int[MAX_RUNS + 1];
+    private final int[] runNext = new int[MAX_RUNS + 1];
+    private final int[] runEnd = new int[MAX_RUNS + 1];
+    static final int MAX_RUNS = 8;
+
 
     // array used for sorting the temp centroids.  This is a field
     // to avoid allocations during operation
     private final int[] order;
 
+    // when incremental merging is on, a full incoming buffer is merged a few steps at a time by
+    // this job, which swaps its own arrays with the buffer and the centroids above
+    private transient IncrementalMerge incremental = null;
+
+    // when concurrent reads are enabled, this is an immutable copy of the merged centroids
+    // plus an append-only copy of the incoming buffer that readers can use without locking
+    private transient volatile DigestSnapshot snapshot = null;
+
+    // the merged centroids with cumulative weights for queries, built on demand and stale after any merge
+    private transient SortedCentroids.Cumulative cumulative = null;
+    transient boolean cumulativeValid = false;
+
+    // scratch space for radix sorting large merge buffers, only allocated if needed
+    private transient long[] radixKeys = null;
+    private transient long[] radixScratch = null;
+    private transient double[] radixWeights = null;
+    private transient int[] radixCounts = null;
+
+    // buffers at least this big are radix sorted in place rather than sorted through the order
+    // array. Radix sorting is faster even for small buffers, but the scratch space would more
+    // than double the memory used by small digests.
+    static final int RADIX_SORT_THRESHOLD = 2048;
+
+    /**
+     * The smallest buffer that can be used to read or write digests on a channel. Anything bigger
+     * just means fewer calls to the channel.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static final int MIN_CHANNEL_BUFFER = 32;
+
     // if true, alternate upward and downward merge passes
     public boolean useAlternatingSort = true;
     // if true, use higher working value of compression during construction, then reduce on presentation
@@ -230,11 +276,33 @@ public class MergingDigest extends AbstractTDigest {
         lastUsedCell = 0;
     }
 
+    /**
+     * Rebuilds an empty digest with exactly the settings of one that was serialized. The other
+     * constructors work the internal compression and the sizes out from what they are given,
+     * and that doesn't always lead back to the same numbers.
+     */
+    private MergingDigest(double publicCompression, double compression, int size, int bufferSize) {
+        this.publicCompression = publicCompression;
+        this.compression = compression;
+
+        weight = new double[size];
+        mean = new double[size];
+
+        tempWeight = new double[bufferSize];
+        tempMean = new double[bufferSize];
+        order = new int[bufferSize];
+
+        lastUsedCell = 0;
+    }
+
     /**
      * Turns on internal data recording.
      */
     @Override
     public TDigest recordAllData() {
+        if (incremental != null) {
+            throw new IllegalStateException("Can't record data while merging incrementally");
+        }
         super.recordAllData();
         data = new ArrayList<>();
         tempData = new ArrayList<>();
@@ -255,13 +323,20 @@ public class MergingDigest extends AbstractTDigest {
         if (Double.isNaN(x)) {
             throw new IllegalArgumentException("Cannot add NaN to t-digest");
         }
-        if (tempUsed >= tempWeight.length - lastUsedCell - 1) {
-            mergeNewValues();
+        if (tempUsed >= bufferLimit()) {
+            makeRoom();
         }
         int where = tempUsed++;
         tempWeight[where] = w;
         tempMean[where] = x;
+        if (tempRuns <= MAX_RUNS && (where == 0 || x < tempMean[where - 1])) {
+            startRun(where);
+        }
         unmergedWeight += w;
+        DigestSnapshot s = snapshot;
+        if (s != null) {
+            s.append(tempMean, tempWeight, where, 1);
+        }
         if (x < min) {
             min = x;
         }
@@ -281,6 +356,101 @@ public class MergingDigest extends AbstractTDigest {
             }
             tempData.get(where).addAll(history);
         }
+        if (incremental != null) {
+            incremental.advance(incremental.stepsPerAdd);
+        }
+    }
+
+    /**
+     * Adds a block of unit weight samples by copying them straight into the incoming buffer.
+     * The NaN check and the min/max update are done once for the whole block and merges
+     * happen at exactly the same points that adding the samples one at a time would cause.
+     */
+    @Override
+    public void add(double[] values, int offset, int length) {
+        add(values, null, offset, length);
+    }
+
+    @Override
+    public void add(double[] values, double[] weights, int offset, int length) {
+        checkRange(values.length, offset, length);
+        if (weights != null) {
+            checkRange(weights.length, offset, length);
+            // weights are checked before anything is added, just like the values below
+            for (int i = offset; i < offset + length; i++) {
+                checkWeight(weights[i]);
+            }
+        }
+        if (data != null) {
+            // recording history is for testing, no point in being clever
+            for (int i = offset; i < offset + length; i++) {
+                checkValue(values[i]);
+            }
+            for (int i = offset; i < offset + length; i++) {
+                add(values[i], weights == null ? 1 : (int) weights[i], (List<Double>) null);
+            }
+            return;
+        }
+        addBlock(values, weights, offset, length);
+    }
+
+    /**
+     * Same as {@link #add(double[], double[], int, int)} without checking the ranges or the
+     * weights. Used to move samples and centroids that are already known to be good from one
+     * digest to another.
+     */
+    void addBlock(double[] values, double[] weights, int offset, int length) {
+        // scan the whole block first so that a NaN leaves the digest untouched
+        double blockMin = min;
+        double blockMax = max;
+        for (int i = offset; i < offset + length; i++) {
+            double x = values[i];
+            if (Double.isNaN(x)) {
+                throw new IllegalArgumentException("Cannot add NaN to t-digest");
+            }
+            if (x < blockMin) {
+                blockMin = x;
+            }
+            if (x > blockMax) {
+                blockMax = x;
+            }
+        }
+
+        min = blockMin;
+        max = blockMax;
+
+        int end = offset + length;
+        while (offset < end) {
+            int room = bufferLimit() - tempUsed;
+            if (room <= 0) {
+                makeRoom();
+                continue;
+            }
+            int n = Math.min(room, end - offset);
+            System.arraycopy(values, offset, tempMean, tempUsed, n);
+            if (tempRuns <= MAX_RUNS) {
+                findRuns(tempUsed, n);
+            }
+            if (weights == null) {
+                Arrays.fill(tempWeight, tempUsed, tempUsed + n, 1);
+                unmergedWeight += n;
+            } else {
+                System.arraycopy(weights, offset, tempWeight, tempUsed, n);
+                for (int i = offset; i < offset + n; i++) {
+                    unmergedWeight += weights[i];
+                }
+            }
+            DigestSnapshot s = snapshot;
+            if (s != null) {
+                s.append(tempMean, tempWeight, tempUsed, n);
+            }
+            tempUsed += n;
+            offset += n;
+            if (incremental != null) {
+                // the same budget as adding the samples one at a time
+                incremental.advance((int) Math.min(Integer.MAX_VALUE, (long) n * incremental.stepsPerAdd));
+            }
+        }
     }
 
     private void add(double[] m, double[] w, int count, List<List<Double>> data) {
@@ -300,7 +470,8 @@ public class MergingDigest extends AbstractTDigest {
         for (int i = 0; i < count; i++) {
             total += w[i];
         }
-        merge(m, w, count, data, null, total, false, compression);
+        merge(m, w, count, data, null, 0, total, false, compression);
+        publish();
     }
 
     @Override
@@ -308,9 +479,191 @@ public class MergingDigest extends AbstractTDigest {
         if (others.size() == 0) {
             return;
         }
-        int size = 0;
         for (TDigest other : others) {
             other.compress();
+        }
+        addCentroids(others);
+    }
+
+    /**
+     * Merges partial results without compressing them down to the public compression first.
+     * Each digest only has its buffered samples merged at the internal compression so that a
+     * tree of merges loses no more accuracy than one big merge would. That is the same merge
+     * the digests would do anyway when their buffers fill up, so they can go on being used.
+     */
+    void addPartials(List<MergingDigest> others) {
+        for (MergingDigest other : others) {
+            other.mergeNewValues();
+        }
+        addCentroids(others);
+    }
+
+    /**
+     * Merges digests serialized by {@link #asBytes(ByteBuffer)}, {@link #asSmallBytes(ByteBuffer)}
+     * or {@link #asCompactBytes(ByteBuffer)} straight from their bytes. The result is the same as
+     * reading each one with {@link #fromBytes(ByteBuffer)} and calling {@link #add(List)}, but no
+     * digest is created for any of the inputs. The centroids of all of the inputs are streamed through a k-way merge so
+     * the only scratch space is a few arrays with one entry per input. The compact and quantized
+     * formats can't be read in place so those inputs are decoded into temporary arrays first.
+     * <p>
+     * As with {@link #fromBytes(ByteBuffer)}, each buffer is read from its position and is left
+     * positioned just after the digest.
+     *
+     * @param inputs The buffers holding the digests to merge.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void addSerialized(List<ByteBuffer> inputs) {
+        if (recordAllData) {
+            throw new IllegalStateException("Serialized digests have no data history to record");
+        }
+        finishIncrementalMerge();
+        int k = inputs.size() + 1;
+        ByteBuffer[] bufs = new ByteBuffer[k];
+        int[] first = new int[k];
+        boolean[] small = new boolean[k];
+        int[] counts = new int[k];
+        // sources that have to be copied out of their buffer are read from these instead
+        double[][] means = new double[k][];
+        double[][] weights = new double[k][];
+
+        DigestView view = new DigestView();
+        double incomingWeight = 0;
+        int j = 0;
+        for (ByteBuffer buf : inputs) {
+            int code = buf.getInt(buf.position());
+            if (code == Encoding.COMPACT_ENCODING.code || code == Encoding.QUANTIZED_ENCODING.code) {
+                // the packed formats can't be read in place so they are decoded into a copy
+                buf.getInt();
+                double inputMin = buf.getDouble();
+                double inputMax = buf.getDouble();
+                buf.getDouble();
+                decode(buf);
+                decode(buf);
+                int n = decode(buf);
+                means[j] = new double[n];
+                weights[j] = new double[n];
+                counts[j] = n;
+                if (code == Encoding.COMPACT_ENCODING.code) {
+                    CentroidCodec.read(buf, means[j], weights[j], n);
+                } else {
+                    CentroidCodec.readQuantized(buf, means[j], weights[j], n, inputMin, inputMax);
+                }
+                if (!isSorted(means[j], n)) {
+                    sortCentroids(means[j], weights[j], n);
+                }
+                if (n > 0) {
+                    min = Math.min(min, inputMin);
+                    max = Math.max(max, inputMax);
+                }
+                for (int i = 0; i < n; i++) {
+                    incomingWeight += weights[j][i];
+                }
+                j++;
+                continue;
+            }
+
+            view.wrap(buf);
+            counts[j] = view.centroidCount();
+            if (view.isSorted()) {
+                bufs[j] = buf;
+                first[j] = view.firstCentroid();
+                small[j] = view.isSmall();
+            } else {
+                // round-off can very occasionally leave a mean out of order, fix it in a copy
+                int n = counts[j];
+                means[j] = new double[n];
+                weights[j] = new double[n];
+                for (int i = 0; i < n; i++) {
+                    means[j][i] = DigestView.meanAt(buf, view.firstCentroid(), view.isSmall(), i);
+                    weights[j][i] = DigestView.weightAt(buf, view.firstCentroid(), view.isSmall(), i);
+                }
+                sortCentroids(means[j], weights[j], n);
+            }
+            if (counts[j] > 0) {
+                min = Math.min(min, view.getMin());
+                max = Math.max(max, view.getMax());
+            }
+            incomingWeight += view.totalWeight();
+            buf.position(buf.position() + view.byteSize());
+            j++;
+        }
+        // our own centroids are about to be overwritten so they need a copy
+        means[j] = Arrays.copyOf(mean, lastUsedCell);
+        weights[j] = Arrays.copyOf(weight, lastUsedCell);
+        counts[j] = lastUsedCell;
+
+        // the heap is keyed on the next unconsumed mean of each source
+        double[] keys = new double[k];
+        int[] next = new int[k];
+        int[] heap = new int[k];
+        int live = 0;
+        int total = 0;
+        for (j = 0; j < k; j++) {
+            total += counts[j];
+            if (counts[j] > 0) {
+                keys[j] = means[j] != null ? means[j][0] : DigestView.meanAt(bufs[j], first[j], small[j], 0);
+                heap[live++] = j;
+            }
+        }
+        if (total == 0) {
+            return;
+        }
+        for (int i = live / 2 - 1; i >= 0; i--) {
+            siftDown(heap, live, i, keys);
+        }
+
+        cumulativeValid = false;
+        totalWeight += incomingWeight;
+        Compressor compressor = null;
+        for (int i = 0; i < total; i++) {
+            int top = heap[0];
+            double x = keys[top];
+            double w;
+            if (means[top] != null) {
+                w = weights[top][next[top]];
+            } else {
+                w = DigestView.weightAt(bufs[top], first[top], small[top], next[top]);
+            }
+            next[top]++;
+            if (next[top] == counts[top]) {
+                heap[0] = heap[--live];
+            } else if (means[top] != null) {
+                keys[top] = means[top][next[top]];
+            } else {
+                keys[top] = DigestView.meanAt(bufs[top], first[top], small[top], next[top]);
+            }
+            siftDown(heap, live, 0, keys);
+
+            if (compressor == null) {
+                compressor = new Compressor(mean, weight, scale, compression, totalWeight, x, w);
+            } else {
+                // force last centroid to never merge
+                compressor.add(x, w, i == 1 || i == total - 1);
+            }
+        }
+        // points to next empty cell
+        lastUsedCell = compressor.last + 1;
+
+        if (totalWeight > 0) {
+            min = Math.min(min, mean[0]);
+            max = Math.max(max, mean[lastUsedCell - 1]);
+        }
+        publish();
+    }
+
+    private void addCentroids(List<? extends TDigest> others) {
+        finishIncrementalMerge();
+        if (recordAllData) {
+            // the history of each centroid has to travel with it so copy everything and sort
+            addAll(others);
+        } else {
+            mergeSorted(others);
+        }
+    }
+
+    private void addAll(List<? extends TDigest> others) {
+        int size = 0;
+        for (TDigest other : others) {
             size += other.centroidCount();
         }
 
@@ -334,6 +687,14 @@ public class MergingDigest extends AbstractTDigest {
                     }
                 }
                 offset += md.lastUsedCell;
+            } else if (other instanceof FrozenDigest) {
+                int start = offset;
+                offset = ((FrozenDigest) other).copyCentroids(m, w, offset);
+                if (data != null) {
+                    for (int i = start; i < offset; i++) {
+                        data.add(null);
+                    }
+                }
             } else {
                 for (Centroid centroid : other.centroids()) {
                     m[offset] = centroid.mean();
@@ -349,35 +710,266 @@ public class MergingDigest extends AbstractTDigest {
         add(m, w, size, data);
     }
 
+    /**
+     * Streams the centroids of already compressed digests into this one with a k-way merge.
+     * <p>
+     * The centroids of each digest are already in order so there is no need to copy them all into
+     * one big array and sort it. The only scratch space needed is a heap with one entry per digest.
+     * Ties are broken in favor of the earlier digest, with our own centroids last, exactly as the
+     * stable sort in {@link #merge} does, so the result is the same either way.
+     */
+    private void mergeSorted(List<? extends TDigest> others) {
+        int k = others.size() + 1;
+        double[][] means = new double[k][];
+        double[][] weights = new double[k][];
+        int[] counts = new int[k];
+        double incomingWeight = 0;
+        int j = 0;
+        for (TDigest other : others) {
+            if (other instanceof MergingDigest && other != this) {
+                MergingDigest md = (MergingDigest) other;
+                means[j] = md.mean;
+                weights[j] = md.weight;
+                counts[j] = md.lastUsedCell;
+            } else {
+                int n = other.centroidCount();
+                means[j] = new double[n];
+                weights[j] = new double[n];
+                counts[j] = n;
+                if (other instanceof FrozenDigest) {
+                    ((FrozenDigest) other).copyCentroids(means[j], weights[j], 0);
+                } else {
+                    int i = 0;
+                    for (Centroid centroid : other.centroids()) {
+                        means[j][i] = centroid.mean();
+                        weights[j][i] = centroid.count();
+                        i++;
+                    }
+                }
+            }
+            for (int i = 0; i < counts[j]; i++) {
+                incomingWeight += weights[j][i];
+            }
+            j++;
+        }
+        // our own centroids are about to be overwritten so they need a copy
+        means[j] = Arrays.copyOf(mean, lastUsedCell);
+        weights[j] = Arrays.copyOf(weight, lastUsedCell);
+        counts[j] = lastUsedCell;
+
+        int total = 0;
+        int[] heap = new int[k];
+        int live = 0;
+        for (j = 0; j < k; j++) {
+            if (!isSorted(means[j], counts[j])) {
+                // round-off in a centroid update can very occasionally leave a mean out of order
+                int[] order = new int[counts[j]];
+                Sort.stableSort(order, means[j], counts[j]);
+                double[] m = new double[counts[j]];
+                double[] w = new double[counts[j]];
+                for (int i = 0; i < counts[j]; i++) {
+                    m[i] = means[j][order[i]];
+                    w[i] = weights[j][order[i]];
+                }
+                means[j] = m;
+                weights[j] = w;
+            }
+            total += counts[j];
+            if (counts[j] > 0) {
+                heap[live++] = j;
+            }
+        }
+        if (total == 0) {
+            return;
+        }
+        int[] next = new int[k];
+        for (int i = live / 2 - 1; i >= 0; i--) {
+            siftDown(heap, live, i, means, next);
+        }
+
+        cumulativeValid = false;
+        totalWeight += incomingWeight;
+        Compressor compressor = null;
+        for (int i = 0; i < total; i++) {
+            int top = heap[0];
+            double x = means[top][next[top]];
+            double w = weights[top][next[top]];
+            next[top]++;
+            if (next[top] == counts[top]) {
+                heap[0] = heap[--live];
+            }
+            siftDown(heap, live, 0, means, next);
+
+            if (compressor == null) {
+                compressor = new Compressor(mean, weight, scale, compression, totalWeight, x, w);
+            } else {
+                // force last centroid to never merge
+                compressor.add(x, w, i == 1 || i == total - 1);
+            }
+        }
+        // points to next empty cell
+        lastUsedCell = compressor.last + 1;
+
+        if (totalWeight > 0) {
+            min = Math.min(min, mean[0]);
+            max = Math.max(max, mean[lastUsedCell - 1]);
+        }
+        publish();
+    }
+
+    /**
+     * Stable sorts centroids by mean, in place.
+     */
+    private static void sortCentroids(double[] m, double[] w, int n) {
+        int[] order = new int[n];
+        Sort.stableSort(order, m, n);
+        double[] m0 = Arrays.copyOf(m, n);
+        double[] w0 = Arrays.copyOf(w, n);
+        for (int i = 0; i < n; i++) {
+            m[i] = m0[order[i]];
+            w[i] = w0[order[i]];
+        }
+    }
+
+    private static boolean isSorted(double[] values, int n) {
+        for (int i = 1; i < n; i++) {
+            if (values[i] < values[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Restores the heap property below position i. Each heap entry is a source whose key is its
+     * next unconsumed mean, ties going to the lower source number.
+     */
+    private static void siftDown(int[] heap, int n, int i, double[][] means, int[] next) {
+        int s = heap[i];
+        double key = n > 0 ? means[s][next[s]] : 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            int c = heap[child];
+            double ck = means[c][next[c]];
+            if (child + 1 < n) {
+                int r = heap[child + 1];
+                double rk = means[r][next[r]];
+                if (rk < ck || (rk == ck && r < c)) {
+                    child++;
+                    c = r;
+                    ck = rk;
+                }
+            }
+            if (key < ck || (key == ck && s < c)) {
+                break;
+            }
+            heap[i] = c;
+            i = child;
+        }
+        heap[i] = s;
+    }
+
+    /**
+     * Same as {@link #siftDown(int[], int, int, double[][], int[])} with the key of each source
+     * kept in keys.
+     */
+    private static void siftDown(int[] heap, int n, int i, double[] keys) {
+        int s = heap[i];
+        double key = n > 0 ? keys[s] : 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            int c = heap[child];
+            double ck = keys[c];
+            if (child + 1 < n) {
+                int r = heap[child + 1];
+                double rk = keys[r];
+                if (rk < ck || (rk == ck && r < c)) {
+                    child++;
+                    c = r;
+                    ck = rk;
+                }
+            }
+            if (key < ck || (key == ck && s < c)) {
+                break;
+            }
+            heap[i] = c;
+            i = child;
+        }
+        heap[i] = s;
+    }
+
+    /**
+     * How many samples can always be buffered before a merge is needed.
+     */
+    int incomingCapacity() {
+        return tempWeight.length - mean.length - 1;
+    }
+
+    /**
+     * Moves the contents of this digest into another one. Unlike {@link #add(List)}, this does
+     * not compress this digest down to the public compression first so no accuracy is lost.
+     * This digest should not be used afterwards.
+     */
+    void drainTo(MergingDigest target) {
+        finishIncrementalMerge();
+        target.addBlock(tempMean, tempWeight, 0, tempUsed);
+        target.addBlock(mean, weight, 0, lastUsedCell);
+        target.min = Math.min(target.min, min);
+        target.max = Math.max(target.max, max);
+    }
+
     private void mergeNewValues() {
         mergeNewValues(false, compression);
     }
 
     private void mergeNewValues(boolean force, double compression) {
+        finishIncrementalMerge();
         if (totalWeight == 0 && unmergedWeight == 0) {
             // seriously nothing to do
             return;
         }
         if (force || unmergedWeight > 0) {
             // note that we run the merge in reverse every other merge to avoid left-to-right bias in merging
-            merge(tempMean, tempWeight, tempUsed, tempData, order, unmergedWeight,
+            merge(tempMean, tempWeight, tempUsed, tempData, order, tempRuns, unmergedWeight,
                     useAlternatingSort & mergeCount % 2 == 1, compression);
             mergeCount++;
             tempUsed = 0;
+            tempRuns = 0;
             unmergedWeight = 0;
             if (data != null) {
                 tempData = new ArrayList<>();
             }
+            publish();
         }
     }
 
+    /**
+     * @param runs The number of ascending runs in the incoming values as recorded in runStarts,
+     *             or 0 if they aren't known.
+     */
     private void merge(double[] incomingMean, double[] incomingWeight, int incomingCount,
-                       List<List<Double>> incomingData, int[] incomingOrder,
+                       List<List<Double>> incomingData, int[] incomingOrder, int runs,
                        double unmergedWeight, boolean runBackwards, double compression) {
         // when our incoming buffer fills up, we combine our existing centroids with the incoming data,
         // and then reduce the centroids by merging if possible
+        cumulativeValid = false;
         assert lastUsedCell <= 0 || weight[0] == 1;
         assert lastUsedCell <= 0 || weight[lastUsedCell - 1] == 1;
+        // the number of runs to merge or -1 if the values have to be sorted
+        int runCount = -1;
+        if (runs <= MAX_RUNS && (runs > 0 || incomingCount == 0) && isSorted(mean, lastUsedCell)) {
+            // our own centroids are one more run
+            runCount = runs;
+            if (lastUsedCell > 0) {
+                runStarts[runCount++] = incomingCount;
+            }
+        }
         System.arraycopy(mean, 0, incomingMean, incomingCount, lastUsedCell);
 
         System.arraycopy(weight, 0, incomingWeight, incomingCount, lastUsedCell);
@@ -393,7 +985,16 @@ public class MergingDigest extends AbstractTDigest {
         if (incomingOrder == null) {
             incomingOrder = new int[incomingCount];
         }
-        Sort.stableSort(incomingOrder, incomingMean, incomingCount);
+        if (runCount >= 0) {
+            mergeRuns(incomingOrder, incomingMean, incomingCount, runStarts, runCount, runNext, runEnd);
+        } else if (incomingData == null && incomingCount >= RADIX_SORT_THRESHOLD) {
+            radixSort(incomingMean, incomingWeight, incomingCount);
+            for (int i = 0; i < incomingCount; i++) {
+                incomingOrder[i] = i;
+            }
+        } else {
+            Sort.stableSort(incomingOrder, incomingMean, incomingCount);
+        }
 
         totalWeight += unmergedWeight;
 
@@ -404,74 +1005,37 @@ public class MergingDigest extends AbstractTDigest {
 
 
         // start by copying the least incoming value to the normal buffer
-        lastUsedCell = 0;
-        mean[lastUsedCell] = incomingMean[incomingOrder[0]];
-        weight[lastUsedCell] = incomingWeight[incomingOrder[0]];
-        double wSoFar = 0;
+        Compressor compressor = new Compressor(mean, weight, scale, compression, totalWeight,
+                incomingMean[incomingOrder[0]], incomingWeight[incomingOrder[0]]);
         if (data != null) {
             assert incomingData != null;
             data.add(incomingData.get(incomingOrder[0]));
         }
 
         // weight will contain all zeros after this loop
-
-        double normalizer = scale.normalizer(compression, totalWeight);
-        double k1 = scale.k(0, normalizer);
-        double wLimit = totalWeight * scale.q(k1 + 1, normalizer);
         for (int i = 1; i < incomingCount; i++) {
             int ix = incomingOrder[i];
-            double proposedWeight = weight[lastUsedCell] + incomingWeight[ix];
-            double projectedW = wSoFar + proposedWeight;
-            boolean addThis;
-            if (useWeightLimit) {
-                double q0 = wSoFar / totalWeight;
-                double q2 = (wSoFar + proposedWeight) / totalWeight;
-                addThis = proposedWeight <= totalWeight * Math.min(scale.max(q0, normalizer), scale.max(q2, normalizer));
-            } else {
-                addThis = projectedW <= wLimit;
-            }
-            if (i == 1 || i == incomingCount - 1) {
-                // force last centroid to never merge
-                addThis = false;
-            }
-
-            if (addThis) {
-                // next point will fit
-                // so merge into existing centroid
-                weight[lastUsedCell] += incomingWeight[ix];
-                mean[lastUsedCell] = mean[lastUsedCell] + (incomingMean[ix] - mean[lastUsedCell]) * incomingWeight[ix] / weight[lastUsedCell];
-                incomingWeight[ix] = 0;
+            // force last centroid to never merge
+            boolean merged = compressor.add(incomingMean[ix], incomingWeight[ix], i == 1 || i == incomingCount - 1);
+            incomingWeight[ix] = 0;
 
-                if (data != null) {
-                    while (data.size() <= lastUsedCell) {
+            if (data != null) {
+                assert incomingData != null;
+                int last = compressor.last;
+                if (merged) {
+                    while (data.size() <= last) {
                         data.add(new ArrayList<Double>());
                     }
-                    assert incomingData != null;
-                    assert data.get(lastUsedCell) != incomingData.get(ix);
-                    data.get(lastUsedCell).addAll(incomingData.get(ix));
-                }
-            } else {
-                // didn't fit ... move to next output, copy out first centroid
-                wSoFar += weight[lastUsedCell];
-                if (!useWeightLimit) {
-                    k1 = scale.k(wSoFar / totalWeight, normalizer);
-                    wLimit = totalWeight * scale.q(k1 + 1, normalizer);
-                }
-
-                lastUsedCell++;
-                mean[lastUsedCell] = incomingMean[ix];
-                weight[lastUsedCell] = incomingWeight[ix];
-                incomingWeight[ix] = 0;
-
-                if (data != null) {
-                    assert incomingData != null;
-                    assert data.size() == lastUsedCell;
+                    assert data.get(last) != incomingData.get(ix);
+                    data.get(last).addAll(incomingData.get(ix));
+                } else {
+                    assert data.size() == last;
                     data.add(incomingData.get(ix));
                 }
             }
         }
         // points to next empty cell
-        lastUsedCell++;
+        lastUsedCell = compressor.last + 1;
 
         // sanity check
         double sum = 0;
@@ -496,25 +1060,259 @@ public class MergingDigest extends AbstractTDigest {
     }
 
     /**
-     * Exposed for testing.
+     * Notes that a new ascending run starts at position i of the incoming buffer.
      */
-    int checkWeights() {
-        return checkWeights(weight, totalWeight, lastUsedCell);
+    private void startRun(int i) {
+        if (i == 0) {
+            tempRuns = 0;
+        }
+        if (tempRuns < MAX_RUNS) {
+            runStarts[tempRuns] = i;
+        }
+        tempRuns++;
     }
 
-    private int checkWeights(double[] w, double total, int last) {
-        int badCount = 0;
-
-        int n = last;
-        if (w[n] > 0) {
-            n++;
+    /**
+     * Finds the runs in n values that were just copied into the incoming buffer at offset.
+     */
+    private void findRuns(int offset, int n) {
+        int end = offset + n;
+        for (int i = offset; i < end && tempRuns <= MAX_RUNS; i++) {
+            if (i == 0 || tempMean[i] < tempMean[i - 1]) {
+                startRun(i);
+            }
         }
+    }
 
-        double normalizer = scale.normalizer(publicCompression, totalWeight);
-        double k1 = scale.k(0, normalizer);
-        double q = 0;
-        double left = 0;
-        String header = "\n";
+    /**
+     * Sets order to the stable sorted order of values given a few ascending runs. Each step takes
+     * the smallest head of any run with ties going to the earlier run. This is exactly the order
+     * that a stable sort would give, but only costs a few comparisons per value.
+     *
+     * @param starts Where each run starts. The first run starts at 0 and the last ends at n.
+     * @param k      The number of runs.
+     * @param next   Scratch space for k positions.
+     * @param end    More scratch space for k positions.
+     */
+    static void mergeRuns(int[] order, double[] values, int n, int[] starts, int k, int[] next, int[] end) {
+        if (k <= 1) {
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            return;
+        }
+        for (int r = 0; r < k - 1; r++) {
+            next[r] = starts[r];
+            end[r] = starts[r + 1];
+        }
+        next[k - 1] = starts[k - 1];
+        end[k - 1] = n;
+        for (int i = 0; i < n; i++) {
+            int best = -1;
+            double x = 0;
+            for (int r = 0; r < k; r++) {
+                if (next[r] < end[r] && (best < 0 || values[next[r]] < x)) {
+                    best = r;
+                    x = values[next[r]];
+                }
+            }
+            order[i] = next[best]++;
+        }
+    }
+
+    /**
+     * Sorts the data itself rather than an index. Recorded data is kept in step with the index
+     * so this can only be used when not recording.
+     */
+    private void radixSort(double[] m, double[] w, int n) {
+        if (radixKeys == null || radixKeys.length < n) {
+            int size = Math.max(n, tempMean.length);
+            radixKeys = new long[size];
+            radixScratch = new long[size];
+            radixWeights = new double[size];
+            radixCounts = new int[Sort.RADIX_COUNTS];
+        }
+        Sort.radixSort(m, w, n, radixKeys, radixScratch, radixWeights, radixCounts);
+    }
+
+    /**
+     * Where the incoming buffer counts as full. An incremental merge can end up with more
+     * centroids than it started with so it always leaves room for as many as there can be.
+     */
+    private int bufferLimit() {
+        return incremental != null ? incomingCapacity() : tempWeight.length - lastUsedCell - 1;
+    }
+
+    /**
+     * Empties the full incoming buffer, either by merging it or by handing it to the incremental merge.
+     */
+    private void makeRoom() {
+        if (incremental != null) {
+            incremental.start();
+        } else {
+            mergeNewValues();
+        }
+    }
+
+    private void finishIncrementalMerge() {
+        if (incremental != null) {
+            incremental.finish();
+        }
+    }
+
+    /**
+     * Turns incremental merging on or off.
+     * <p>
+     * Normally, the add that fills the incoming buffer sorts it and merges it with the centroids
+     * all at once. That is cheap on average but that one add in a few thousand takes far longer
+     * than the rest. With incremental merging, a full buffer is swapped with a spare and becomes
+     * a merge job instead. The job is a resumable merge sort of the buffer followed by a linear
+     * merge with the centroids through the same compression loop that an ordinary merge uses.
+     * Each add then does a fixed number of steps of the job, where a step moves or compresses a
+     * single value.
+     * <p>
+     * The default budget finishes each job when the new buffer is only half full. If a job is
+     * still running when the buffer fills up again, the rest of it is done right then. Queries,
+     * merges with other digests and serialization finish any job first. Incremental merges
+     * always run from left to right and need two more buffers and one more set of centroids.
+     * They can't be combined with concurrent reads or with recording data. Like concurrent reads,
+     * this setting survives Java serialization but not the byte formats.
+     *
+     * @param stepsPerAdd How much merge work to do on each add, -1 for the default or 0 to go back
+     *                    to ordinary merges. With too small a budget, some adds will have to
+     *                    finish off a merge.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setIncrementalMerge(int stepsPerAdd) {
+        if (stepsPerAdd < -1) {
+            throw new IllegalArgumentException("Need -1, 0 or a positive number of steps per add, got " + stepsPerAdd);
+        }
+        if (stepsPerAdd == 0) {
+            finishIncrementalMerge();
+            incremental = null;
+            return;
+        }
+        if (data != null) {
+            throw new IllegalStateException("Can't merge incrementally while recording data");
+        }
+        if (snapshot != null) {
+            throw new IllegalStateException("Can't merge incrementally with concurrent reads");
+        }
+        if (stepsPerAdd == -1) {
+            // a job takes n * log2(n) steps to sort and about n more to merge
+            int log = 32 - Integer.numberOfLeadingZeros(tempMean.length - 1);
+            stepsPerAdd = 2 * (log + 2);
+        }
+        if (incremental == null) {
+            incremental = new IncrementalMerge(this);
+        }
+        incremental.stepsPerAdd = stepsPerAdd;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isIncrementalMerge() {
+        return incremental != null;
+    }
+
+    /**
+     * Exposed for testing. How many incremental merges had to be finished all at once.
+     */
+    int lateJobs() {
+        return incremental == null ? 0 : incremental.lateJobs;
+    }
+
+    /**
+     * The compression loop used by every kind of merge. Centroids must be offered in order of
+     * increasing mean. Each one is either folded into the last output centroid or starts a new
+     * one. The total weight must include all of the weight that will be offered.
+     */
+    static final class Compressor {
+        private final double[] mean;
+        private final double[] weight;
+        private final ScaleFunction scale;
+        private final double totalWeight;
+        private final double normalizer;
+        private double wSoFar = 0;
+        private double wLimit;
+
+        // the last output centroid
+        int last = 0;
+
+        Compressor(double[] mean, double[] weight, ScaleFunction scale, double compression, double totalWeight,
+                   double firstMean, double firstWeight) {
+            this.mean = mean;
+            this.weight = weight;
+            this.scale = scale;
+            this.totalWeight = totalWeight;
+            mean[0] = firstMean;
+            weight[0] = firstWeight;
+            normalizer = scale.normalizer(compression, totalWeight);
+            wLimit = totalWeight * scale.q(scale.k(0, normalizer) + 1, normalizer);
+        }
+
+        /**
+         * Offers the next centroid.
+         *
+         * @param x        The mean of the centroid.
+         * @param w        The weight of the centroid.
+         * @param forceNew If true, the centroid always starts a new output centroid.
+         * @return True if the centroid was merged into the last output centroid.
+         */
+        boolean add(double x, double w, boolean forceNew) {
+            double proposedWeight = weight[last] + w;
+            boolean addThis;
+            if (forceNew) {
+                addThis = false;
+            } else if (useWeightLimit) {
+                double q0 = wSoFar / totalWeight;
+                double q2 = (wSoFar + proposedWeight) / totalWeight;
+                addThis = proposedWeight <= totalWeight * Math.min(scale.max(q0, normalizer), scale.max(q2, normalizer));
+            } else {
+                addThis = wSoFar + proposedWeight <= wLimit;
+            }
+
+            if (addThis) {
+                // next point will fit
+                // so merge into existing centroid
+                weight[last] += w;
+                mean[last] = mean[last] + (x - mean[last]) * w / weight[last];
+            } else {
+                // didn't fit ... move to next output, copy out first centroid
+                wSoFar += weight[last];
+                if (!useWeightLimit) {
+                    double k1 = scale.k(wSoFar / totalWeight, normalizer);
+                    wLimit = totalWeight * scale.q(k1 + 1, normalizer);
+                }
+
+                last++;
+                mean[last] = x;
+                weight[last] = w;
+            }
+            return addThis;
+        }
+    }
+
+    /**
+     * Exposed for testing.
+     */
+    int checkWeights() {
+        finishIncrementalMerge();
+        return checkWeights(weight, totalWeight, lastUsedCell);
+    }
+
+    private int checkWeights(double[] w, double total, int last) {
+        int badCount = 0;
+
+        int n = last;
+        if (w[n] > 0) {
+            n++;
+        }
+
+        double normalizer = scale.normalizer(publicCompression, totalWeight);
+        double k1 = scale.k(0, normalizer);
+        double q = 0;
+        double left = 0;
+        String header = "\n";
         for (int i = 0; i < n; i++) {
             double dq = w[i] / total;
             double k2 = scale.k(q + dq, normalizer);
@@ -551,9 +1349,37 @@ public class MergingDigest extends AbstractTDigest {
         mergeNewValues(true, publicCompression);
     }
 
+    @Override
+    public void clear() {
+        if (incremental != null) {
+            incremental.abandon();
+        }
+        lastUsedCell = 0;
+        totalWeight = 0;
+        tempUsed = 0;
+        tempRuns = 0;
+        unmergedWeight = 0;
+        mergeCount = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        cumulativeValid = false;
+        if (data != null) {
+            data.clear();
+            tempData.clear();
+        }
+        publish();
+    }
+
     @Override
     public long size() {
-        return (long) (totalWeight + unmergedWeight);
+        return (long) (totalWeight + unmergedWeight + (incremental == null ? 0 : incremental.jobWeightSum));
+    }
+
+    @Override
+    public FrozenDigest freeze() {
+        compress();
+        return new FrozenDigest(publicCompression, scale, min, max,
+                Arrays.copyOf(mean, lastUsedCell), Arrays.copyOf(cumulativeWeights().cumulative, lastUsedCell + 1));
     }
 
     @Override
@@ -562,136 +1388,7 @@ public class MergingDigest extends AbstractTDigest {
             throw new IllegalArgumentException(String.format("Invalid value: %f", x));
         }
         mergeNewValues();
-
-        if (lastUsedCell == 0) {
-            // no data to examine
-            return Double.NaN;
-        } else if (lastUsedCell == 1) {
-            // exactly one centroid, should have max==min
-            double width = max - min;
-            if (x < min) {
-                return 0;
-            } else if (x > max) {
-                return 1;
-            } else if (x - min <= width) {
-                // min and max are too close together to do any viable interpolation
-                return 0.5;
-            } else {
-                // interpolate if somehow we have weight > 0 and max != min
-                return (x - min) / (max - min);
-            }
-        } else {
-            int n = lastUsedCell;
-            if (x < min) {
-                return 0;
-            }
-
-            if (x > max) {
-                return 1;
-            }
-
-            // check for the left tail
-            if (x < mean[0]) {
-                // note that this is different than mean[0] > min
-                // ... this guarantees we divide by non-zero number and interpolation works
-                if (mean[0] - min > 0) {
-                    // must be a sample exactly at min
-                    if (x == min) {
-                        return 0.5 / totalWeight;
-                    } else {
-                        return (1 + (x - min) / (mean[0] - min) * (weight[0] / 2 - 1)) / totalWeight;
-                    }
-                } else {
-                    // this should be redundant with the check x < min
-                    return 0;
-                }
-            }
-            assert x >= mean[0];
-
-            // and the right tail
-            if (x > mean[n - 1]) {
-                if (max - mean[n - 1] > 0) {
-                    if (x == max) {
-                        return 1 - 0.5 / totalWeight;
-                    } else {
-                        // there has to be a single sample exactly at max
-                        double dq = (1 + (max - x) / (max - mean[n - 1]) * (weight[n - 1] / 2 - 1)) / totalWeight;
-                        return 1 - dq;
-                    }
-                } else {
-                    return 1;
-                }
-            }
-
-            // we know that there are at least two centroids and mean[0] < x < mean[n-1]
-            // that means that there are either one or more consecutive centroids all at exactly x
-            // or there are consecutive centroids, c0 < x < c1
-            double weightSoFar = 0;
-            for (int it = 0; it < n - 1; it++) {
-                // weightSoFar does not include weight[it] yet
-                if (mean[it] == x) {
-                    // we have one or more centroids == x, treat them as one
-                    // dw will accumulate the weight of all of the centroids at x
-                    double dw = 0;
-                    while (it < n && mean[it] == x) {
-                        dw += weight[it];
-                        it++;
-                    }
-                    return (weightSoFar + dw / 2) / totalWeight;
-                } else if (mean[it] <= x && x < mean[it + 1]) {
-                    // landed between centroids ... check for floating point madness
-                    if (mean[it + 1] - mean[it] > 0) {
-                        // note how we handle singleton centroids here
-                        // the point is that for singleton centroids, we know that their entire
-                        // weight is exactly at the centroid and thus shouldn't be involved in
-                        // interpolation
-                        double leftExcludedW = 0;
-                        double rightExcludedW = 0;
-                        if (weight[it] == 1) {
-                            if (weight[it + 1] == 1) {
-                                // two singletons means no interpolation
-                                // left singleton is in, right is out
-                                return (weightSoFar + 1) / totalWeight;
-                            } else {
-                                leftExcludedW = 0.5;
-                            }
-                        } else if (weight[it + 1] == 1) {
-                            rightExcludedW = 0.5;
-                        }
-                        double dw = (weight[it] + weight[it + 1]) / 2;
-
-                        // can't have double singleton (handled that earlier)
-                        assert dw > 1;
-                        assert (leftExcludedW + rightExcludedW) <= 0.5;
-
-                        // adjust endpoints for any singleton
-                        double left = mean[it];
-                        double right = mean[it + 1];
-
-                        double dwNoSingleton = dw - leftExcludedW - rightExcludedW;
-
-                        // adjustments have only limited effect on endpoints
-                        assert dwNoSingleton > dw / 2;
-                        assert right - left > 0;
-                        double base = weightSoFar + weight[it] / 2 + leftExcludedW;
-                        return (base + dwNoSingleton * (x - left) / (right - left)) / totalWeight;
-                    } else {
-                        // this is simply caution against floating point madness
-                        // it is conceivable that the centroids will be different
-                        // but too near to allow safe interpolation
-                        double dw = (weight[it] + weight[it + 1]) / 2;
-                        return (weightSoFar + dw) / totalWeight;
-                    }
-                } else {
-                    weightSoFar += weight[it];
-                }
-            }
-            if (x == mean[n - 1]) {
-                return 1 - 0.5 / totalWeight;
-            } else {
-                throw new IllegalStateException("Can't happen ... loop fell through");
-            }
-        }
+        return SortedCentroids.cdf(cumulativeWeights(), x, totalWeight, min, max);
     }
 
     @Override
@@ -700,92 +1397,150 @@ public class MergingDigest extends AbstractTDigest {
             throw new IllegalArgumentException("q should be in [0,1], got " + q);
         }
         mergeNewValues();
+        return SortedCentroids.quantile(cumulativeWeights(), q, totalWeight, min, max);
+    }
 
-        if (lastUsedCell == 0) {
-            // no centroids means no data, no way to get a quantile
-            return Double.NaN;
-        } else if (lastUsedCell == 1) {
-            // with one data point, all quantiles lead to Rome
-            return mean[0];
+    /**
+     * Checks all of the cutoffs, merges once and then looks each one up.
+     */
+    @Override
+    public double[] cdfs(double... xs) {
+        for (double x : xs) {
+            if (Double.isNaN(x) || Double.isInfinite(x)) {
+                throw new IllegalArgumentException(String.format("Invalid value: %f", x));
+            }
         }
+        mergeNewValues();
+        SortedCentroids centroids = cumulativeWeights();
+        double[] r = new double[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            r[i] = SortedCentroids.cdf(centroids, xs[i], totalWeight, min, max);
+        }
+        return r;
+    }
 
-        // we know that there are at least two centroids now
-        int n = lastUsedCell;
-
-        // if values were stored in a sorted array, index would be the offset we are interested in
-        final double index = q * totalWeight;
+    /**
+     * Checks all of the fractions, merges once and then looks each one up.
+     */
+    @Override
+    public double[] quantiles(double... qs) {
+        for (double q : qs) {
+            if (q < 0 || q > 1) {
+                throw new IllegalArgumentException("q should be in [0,1], got " + q);
+            }
+        }
+        mergeNewValues();
+        SortedCentroids centroids = cumulativeWeights();
+        double[] r = new double[qs.length];
+        for (int i = 0; i < qs.length; i++) {
+            r[i] = SortedCentroids.quantile(centroids, qs[i], totalWeight, min, max);
+        }
+        return r;
+    }
 
-        // beyond the boundaries, we return min or max
-        // usually, the first centroid will have unit weight so this will make it moot
-        if (index < 1) {
-            return min;
+    private SortedCentroids.Cumulative cumulativeWeights() {
+        if (!cumulativeValid) {
+            if (cumulative == null) {
+                cumulative = new SortedCentroids.Cumulative(mean, new double[weight.length + 1], 0);
+            }
+            // an incremental merge swaps the centroid arrays so the means are picked up again
+            cumulative.mean = mean;
+            cumulative.n = lastUsedCell;
+            SortedCentroids.fillCumulative(weight, lastUsedCell, cumulative.cumulative);
+            cumulativeValid = true;
         }
+        return cumulative;
+    }
 
-        // if the left centroid has more than one sample, we still know
-        // that one sample occurred at min so we can do some interpolation
-        if (weight[0] > 1 && index < weight[0] / 2) {
-            // there is a single sample at min so we interpolate with less weight
-            return min + (index - 1) / (weight[0] / 2 - 1) * (mean[0] - min);
+    @Override
+    public int centroidCount() {
+        mergeNewValues();
+        return lastUsedCell;
+    }
+
+    /**
+     * Turns the lock-free read path on or off. While it is on, every merge publishes an immutable
+     * copy of the merged centroids and incoming samples are also appended to a buffer that belongs
+     * to that copy. This lets any number of threads call {@link #concurrentCdf(double)},
+     * {@link #concurrentQuantile(double)} and {@link #concurrentSize()} while a single thread keeps
+     * adding data, without any locking. The cost is a copy of the centroids on each merge and a
+     * second write of each incoming sample.
+     * <p>
+     * This setting survives Java serialization but isn't part of the {@link #asBytes(ByteBuffer)}
+     * or {@link #asSmallBytes(ByteBuffer)} formats, so it has to be turned on again after
+     * {@link #fromBytes(ByteBuffer)}.
+     *
+     * @param enabled Whether to maintain the snapshot for concurrent readers.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setConcurrentReads(boolean enabled) {
+        if (enabled && incremental != null) {
+            throw new IllegalStateException("Can't have concurrent reads while merging incrementally");
         }
+        snapshot = enabled ? new DigestSnapshot(this) : null;
+    }
 
-        // usually the last centroid will have unit weight so this test will make it moot
-        if (index > totalWeight - 1) {
-            return max;
+    @SuppressWarnings("WeakerAccess")
+    public boolean isConcurrentReads() {
+        return snapshot != null;
+    }
+
+    /**
+     * Like {@link #cdf(double)}, but answers from the most recently published snapshot and
+     * never modifies this digest. Samples that have not been merged yet are counted exactly.
+     * Safe to call from any thread while one other thread is adding data.
+     *
+     * @param x The cutoff for the cdf.
+     * @return The fraction of all data which is less or equal to x.
+     * @throws IllegalStateException if concurrent reads have not been enabled
+     */
+    @SuppressWarnings("WeakerAccess")
+    public double concurrentCdf(double x) {
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            throw new IllegalArgumentException(String.format("Invalid value: %f", x));
         }
+        return currentSnapshot().cdf(x);
+    }
 
-        // if the right-most centroid has more than one sample, we still know
-        // that one sample occurred at max so we can do some interpolation
-        if (weight[n - 1] > 1 && totalWeight - index <= weight[n - 1] / 2) {
-            return max - (totalWeight - index - 1) / (weight[n - 1] / 2 - 1) * (max - mean[n - 1]);
+    /**
+     * Like {@link #quantile(double)}, but answers from the most recently published snapshot and
+     * never modifies this digest. Safe to call from any thread while one other thread is adding data.
+     *
+     * @param q The desired fraction
+     * @return The smallest value x such that cdf(x) &ge; q
+     * @throws IllegalStateException if concurrent reads have not been enabled
+     */
+    @SuppressWarnings("WeakerAccess")
+    public double concurrentQuantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("q should be in [0,1], got " + q);
         }
+        return currentSnapshot().quantile(q);
+    }
 
-        // in between extremes we interpolate between centroids
-        double weightSoFar = weight[0] / 2;
-        for (int i = 0; i < n - 1; i++) {
-            double dw = (weight[i] + weight[i + 1]) / 2;
-            if (weightSoFar + dw > index) {
-                // centroids i and i+1 bracket our current point
+    /**
+     * Like {@link #size()}, but safe to call from any thread while one other thread is adding data.
+     *
+     * @return The number of points visible to concurrent readers.
+     * @throws IllegalStateException if concurrent reads have not been enabled
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long concurrentSize() {
+        return currentSnapshot().size();
+    }
 
-                // check for unit weight
-                double leftUnit = 0;
-                if (weight[i] == 1) {
-                    if (index - weightSoFar < 0.5) {
-                        // within the singleton's sphere
-                        return mean[i];
-                    } else {
-                        leftUnit = 0.5;
-                    }
-                }
-                double rightUnit = 0;
-                if (weight[i + 1] == 1) {
-                    if (weightSoFar + dw - index <= 0.5) {
-                        // no interpolation needed near singleton
-                        return mean[i + 1];
-                    }
-                    rightUnit = 0.5;
-                }
-                double z1 = index - weightSoFar - leftUnit;
-                double z2 = weightSoFar + dw - index - rightUnit;
-                return weightedAverage(mean[i], z2, mean[i + 1], z1);
-            }
-            weightSoFar += dw;
+    private DigestSnapshot currentSnapshot() {
+        DigestSnapshot s = snapshot;
+        if (s == null) {
+            throw new IllegalStateException("Concurrent reads have not been enabled");
         }
-        // we handled singleton at end up above
-        assert weight[n - 1] > 1;
-        assert index <= totalWeight;
-        assert index >= totalWeight - weight[n - 1] / 2;
-
-        // weightSoFar = totalWeight - weight[n-1]/2 (very nearly)
-        // so we interpolate out to max value ever seen
-        double z1 = index - totalWeight - weight[n - 1] / 2.0;
-        double z2 = weight[n - 1] / 2 - z1;
-        return weightedAverage(mean[n - 1], z1, max, z2);
+        return s;
     }
 
-    @Override
-    public int centroidCount() {
-        mergeNewValues();
-        return lastUsedCell;
+    private void publish() {
+        if (snapshot != null) {
+            snapshot = new DigestSnapshot(this);
+        }
     }
 
     @Override
@@ -845,6 +1600,39 @@ public class MergingDigest extends AbstractTDigest {
         return lastUsedCell * 8 + 30;
     }
 
+    /**
+     * Returns the number of bytes {@link #asCompactBytes(ByteBuffer)} will use. Unlike the other
+     * formats this depends on the centroids and not just on how many there are.
+     *
+     * @return The size of the compact encoding in bytes.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int compactByteSize() {
+        compress();
+        return compactSize();
+    }
+
+    private int compactSize() {
+        // format code(int), min, max and compression(double), then variable length buffer sizes
+        // and centroid count, then the centroids
+        return 28 + CentroidCodec.varLongSize(mean.length) + CentroidCodec.varLongSize(tempMean.length)
+                + CentroidCodec.varLongSize(lastUsedCell) + CentroidCodec.byteSize(mean, weight, lastUsedCell);
+    }
+
+    /**
+     * Returns the number of bytes {@link #asQuantizedBytes(ByteBuffer, int)} will use.
+     *
+     * @param meanBits The number of bits kept for each mean.
+     * @return The size of the quantized encoding in bytes.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int quantizedByteSize(int meanBits) {
+        compress();
+        // same header as the compact format, then meanBits + 16 bits per centroid
+        return 28 + CentroidCodec.varLongSize(mean.length) + CentroidCodec.varLongSize(tempMean.length)
+                + CentroidCodec.varLongSize(lastUsedCell) + CentroidCodec.quantizedByteSize(lastUsedCell, meanBits);
+    }
+
     @SuppressWarnings("WeakerAccess")
     public ScaleFunction getScaleFunction() {
         return scale;
@@ -852,13 +1640,15 @@ public class MergingDigest extends AbstractTDigest {
 
     @Override
     public void setScaleFunction(ScaleFunction scaleFunction) {
+        // a merge in progress has to finish with the scale it started with
+        finishIncrementalMerge();
         super.setScaleFunction(scaleFunction);
     }
 
     public enum Encoding {
-        VERBOSE_ENCODING(1), SMALL_ENCODING(2);
+        VERBOSE_ENCODING(1), SMALL_ENCODING(2), COMPACT_ENCODING(3), QUANTIZED_ENCODING(4);
 
-        private final int code;
+        final int code;
 
         Encoding(int code) {
             this.code = code;
@@ -868,71 +1658,350 @@ public class MergingDigest extends AbstractTDigest {
     @Override
     public void asBytes(ByteBuffer buf) {
         compress();
-        buf.putInt(Encoding.VERBOSE_ENCODING.code);
-        buf.putDouble(min);
-        buf.putDouble(max);
-        buf.putDouble(publicCompression);
-        buf.putInt(lastUsedCell);
+        putHeader(buf, false);
         for (int i = 0; i < lastUsedCell; i++) {
-            buf.putDouble(weight[i]);
-            buf.putDouble(mean[i]);
+            putCentroid(buf, false, i);
         }
     }
 
     @Override
     public void asSmallBytes(ByteBuffer buf) {
         compress();
-        buf.putInt(Encoding.SMALL_ENCODING.code);    // 4
-        buf.putDouble(min);                          // + 8
-        buf.putDouble(max);                          // + 8
-        buf.putFloat((float) publicCompression);           // + 4
-        buf.putShort((short) mean.length);           // + 2
-        buf.putShort((short) tempMean.length);       // + 2
-        buf.putShort((short) lastUsedCell);          // + 2 = 30
+        putHeader(buf, true);
         for (int i = 0; i < lastUsedCell; i++) {
+            putCentroid(buf, true, i);
+        }
+    }
+
+    void putHeader(ByteBuffer buf, boolean small) {
+        if (small) {
+            buf.putInt(Encoding.SMALL_ENCODING.code);    // 4
+            buf.putDouble(min);                          // + 8
+            buf.putDouble(max);                          // + 8
+            buf.putFloat((float) publicCompression);           // + 4
+            buf.putShort((short) mean.length);           // + 2
+            buf.putShort((short) tempMean.length);       // + 2
+            buf.putShort((short) lastUsedCell);          // + 2 = 30
+        } else {
+            buf.putInt(Encoding.VERBOSE_ENCODING.code);
+            buf.putDouble(min);
+            buf.putDouble(max);
+            buf.putDouble(publicCompression);
+            buf.putInt(lastUsedCell);
+        }
+    }
+
+    void putCentroid(ByteBuffer buf, boolean small, int i) {
+        if (small) {
             buf.putFloat((float) weight[i]);
             buf.putFloat((float) mean[i]);
+        } else {
+            buf.putDouble(weight[i]);
+            buf.putDouble(mean[i]);
         }
     }
 
+    /**
+     * Writes this digest to a channel in the verbose or small format. This gives the same bytes as
+     * {@link #asBytes(ByteBuffer)} or {@link #asSmallBytes(ByteBuffer)} but the digest is only
+     * compressed once and there is no need to know the size ahead of time. The centroids go out
+     * through the buffer a chunk at a time so it can be small and reused for every digest, and a
+     * direct buffer saves the channel a copy.
+     *
+     * @param out      Where to write the digest. This has to be a blocking channel.
+     * @param encoding Either {@link Encoding#VERBOSE_ENCODING} or {@link Encoding#SMALL_ENCODING}.
+     * @param buffer   Scratch space of at least {@link #MIN_CHANNEL_BUFFER} bytes.
+     * @throws IOException If the channel can't be written.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void writeTo(WritableByteChannel out, Encoding encoding, ByteBuffer buffer) throws IOException {
+        writeTo(out, Collections.singletonList(this), encoding, buffer);
+    }
+
+    /**
+     * Writes many digests to a channel one after the other, as with
+     * {@link #writeTo(WritableByteChannel, Encoding, ByteBuffer)}. The buffer is only written out
+     * when it fills up so small digests are packed together and many of them go out with each
+     * call to the channel.
+     *
+     * @param out      Where to write the digests. This has to be a blocking channel.
+     * @param digests  The digests to write.
+     * @param encoding Either {@link Encoding#VERBOSE_ENCODING} or {@link Encoding#SMALL_ENCODING}.
+     * @param buffer   Scratch space of at least {@link #MIN_CHANNEL_BUFFER} bytes.
+     * @throws IOException If the channel can't be written.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static void writeTo(WritableByteChannel out, Iterable<MergingDigest> digests, Encoding encoding,
+                               ByteBuffer buffer) throws IOException {
+        DigestChannels.write(out, digests, encoding, buffer);
+    }
+
+    /**
+     * Reads the next digest written by {@link #writeTo(WritableByteChannel, Encoding, ByteBuffer)}
+     * or by {@link #asBytes(ByteBuffer)} or {@link #asSmallBytes(ByteBuffer)}.
+     * <p>
+     * The channel is read a buffer at a time, so the buffer usually ends up holding bytes past the
+     * end of this digest. The same buffer has to be passed in to read the next digest. It holds the
+     * bytes that haven't been used yet between its position and its limit, so before the first
+     * call it must be empty with its limit at 0, as it is after {@code buffer.limit(0)}. A freshly
+     * cleared buffer would look like it was full of unread bytes.
+     *
+     * @param in     Where to read from. This has to be a blocking channel.
+     * @param buffer Read-ahead of at least {@link #MIN_CHANNEL_BUFFER} bytes, kept from call to call
+     *               and empty with a limit of 0 before the first call.
+     * @return The next digest or null if the channel is at its end.
+     * @throws IOException If the channel can't be read or ends part way through a digest.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static MergingDigest readFrom(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        return DigestChannels.read(in, buffer);
+    }
+
+    /**
+     * Serializes this digest without losing anything, like {@link #asBytes(ByteBuffer)}, but
+     * usually in about half the space. Weights are written as variable length integers and each
+     * mean is stored as the bits that differ from the previous one, see {@link CentroidCodec}.
+     * The result can be read with {@link #fromBytes(ByteBuffer)}.
+     *
+     * @param buf The buffer to write to, which needs at least {@link #compactByteSize()} bytes.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void asCompactBytes(ByteBuffer buf) {
+        compress();
+        putCompact(buf);
+    }
+
+    private void putCompact(ByteBuffer buf) {
+        buf.putInt(Encoding.COMPACT_ENCODING.code);
+        buf.putDouble(min);
+        buf.putDouble(max);
+        buf.putDouble(publicCompression);
+        encode(buf, mean.length);
+        encode(buf, tempMean.length);
+        encode(buf, lastUsedCell);
+        CentroidCodec.write(buf, mean, weight, lastUsedCell);
+    }
+
+    /**
+     * Serializes this digest with reduced precision for long term storage. With 16 bit means
+     * each centroid takes 4 bytes, half of what {@link #asSmallBytes(ByteBuffer)} uses.
+     * <p>
+     * Min and max are kept exactly. Each mean is rounded to one of 2^meanBits evenly spaced values
+     * between them so it moves by at most (max - min) / (2 (2^meanBits - 1)). Quantiles
+     * interpolate between means and so move by no more than that either, as long as the weights
+     * are exact. Weights are whole numbers for anything built by adding samples, and those are
+     * kept exactly up to 4095. Larger weights are rounded on a log scale to within 0.05%, but the
+     * rounding is carried from one centroid to the next so the rank of any centroid moves by less
+     * than that fraction of a single centroid's weight and {@link #size()} is normally exact.
+     * <p>
+     * The result can be read with {@link #fromBytes(ByteBuffer)} or merged directly with
+     * {@link #addSerialized(List)}.
+     *
+     * @param buf      The buffer to write to, which needs at least {@link #quantizedByteSize(int)} bytes.
+     * @param meanBits The number of bits kept for each mean, from 1 to 32.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void asQuantizedBytes(ByteBuffer buf, int meanBits) {
+        compress();
+        buf.putInt(Encoding.QUANTIZED_ENCODING.code);
+        buf.putDouble(min);
+        buf.putDouble(max);
+        buf.putDouble(publicCompression);
+        encode(buf, mean.length);
+        encode(buf, tempMean.length);
+        encode(buf, lastUsedCell);
+        CentroidCodec.writeQuantized(buf, mean, weight, lastUsedCell, min, max, meanBits);
+    }
+
     @SuppressWarnings("WeakerAccess")
     public static MergingDigest fromBytes(ByteBuffer buf) {
-        int encoding = buf.getInt();
+        MergingDigest r = emptyFor(buf);
+        readInto(buf, r);
+        return r;
+    }
+
+    /**
+     * Makes an empty digest with the compression and buffer sizes given in the header of the
+     * serialized digest at the position of buf. The position isn't changed.
+     */
+    static MergingDigest emptyFor(ByteBuffer buf) {
+        int start = buf.position();
+        int encoding = buf.getInt(start);
+        double compression;
+        int size = -1;
+        int bufferSize = -1;
         if (encoding == Encoding.VERBOSE_ENCODING.code) {
-            double min = buf.getDouble();
-            double max = buf.getDouble();
-            double compression = buf.getDouble();
-            int n = buf.getInt();
-            MergingDigest r = new MergingDigest(compression);
-            r.setMinMax(min, max);
-            r.lastUsedCell = n;
-            for (int i = 0; i < n; i++) {
-                r.weight[i] = buf.getDouble();
-                r.mean[i] = buf.getDouble();
+            compression = buf.getDouble(start + 20);
+        } else if (encoding == Encoding.SMALL_ENCODING.code) {
+            compression = buf.getFloat(start + 20);
+            size = buf.getShort(start + 24);
+            bufferSize = buf.getShort(start + 26);
+        } else if (encoding == Encoding.COMPACT_ENCODING.code || encoding == Encoding.QUANTIZED_ENCODING.code) {
+            compression = buf.getDouble(start + 20);
+            buf.position(start + 28);
+            size = decode(buf);
+            bufferSize = decode(buf);
+            buf.position(start);
+        } else {
+            throw new IllegalStateException("Invalid format for serialized histogram");
+        }
+        return new MergingDigest(compression, bufferSize, size);
+    }
 
-                r.totalWeight += r.weight[i];
+    /**
+     * Reads a digest in any of the formats into an existing digest, replacing whatever it held.
+     * Nothing is allocated so a single digest can be refilled over and over, for instance to
+     * answer queries against many stored digests.
+     * <p>
+     * The target keeps its own compression and buffer sizes. It needs room for all of the
+     * centroids, which is always the case if it was made with the same settings as the digest
+     * that was written. If the compressions differ, the centroids are taken as they are and are
+     * compressed to the target's setting on its next merge.
+     *
+     * @param buf    The buffer to read from, which is left positioned just after the digest.
+     * @param target The digest to fill. It can't be recording data.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static void readInto(ByteBuffer buf, MergingDigest target) {
+        if (target.data != null) {
+            throw new IllegalStateException("Serialized digests have no data history to record");
+        }
+        int encoding = target.readHeader(buf);
+        int n = target.lastUsedCell;
+        if (encoding == Encoding.COMPACT_ENCODING.code || encoding == Encoding.QUANTIZED_ENCODING.code) {
+            if (encoding == Encoding.COMPACT_ENCODING.code) {
+                CentroidCodec.read(buf, target.mean, target.weight, n);
+            } else {
+                CentroidCodec.readQuantized(buf, target.mean, target.weight, n, target.min, target.max);
             }
-            return r;
-        } else if (encoding == Encoding.SMALL_ENCODING.code) {
-            double min = buf.getDouble();
-            double max = buf.getDouble();
-            double compression = buf.getFloat();
-            int n = buf.getShort();
-            int bufferSize = buf.getShort();
-            MergingDigest r = new MergingDigest(compression, bufferSize, n);
-            r.setMinMax(min, max);
-            r.lastUsedCell = buf.getShort();
-            for (int i = 0; i < r.lastUsedCell; i++) {
-                r.weight[i] = buf.getFloat();
-                r.mean[i] = buf.getFloat();
-
-                r.totalWeight += r.weight[i];
+            for (int i = 0; i < n; i++) {
+                target.totalWeight += target.weight[i];
             }
-            return r;
+        } else {
+            boolean small = encoding == Encoding.SMALL_ENCODING.code;
+            for (int i = 0; i < n; i++) {
+                target.readCentroid(buf, small, i);
+            }
+        }
+        target.publish();
+    }
+
+    /**
+     * Reads the header of a digest in any of the formats, including the format code, and empties
+     * this digest to get it ready for the centroids. The header sizes are skipped since this
+     * digest keeps its own.
+     *
+     * @return The format code.
+     */
+    int readHeader(ByteBuffer buf) {
+        int encoding = buf.getInt();
+        double min = buf.getDouble();
+        double max = buf.getDouble();
+        int n;
+        if (encoding == Encoding.VERBOSE_ENCODING.code) {
+            buf.getDouble();
+            n = buf.getInt();
+        } else if (encoding == Encoding.SMALL_ENCODING.code) {
+            buf.getFloat();
+            buf.getShort();
+            buf.getShort();
+            n = buf.getShort();
+        } else if (encoding == Encoding.COMPACT_ENCODING.code || encoding == Encoding.QUANTIZED_ENCODING.code) {
+            buf.getDouble();
+            decode(buf);
+            decode(buf);
+            n = decode(buf);
         } else {
             throw new IllegalStateException("Invalid format for serialized histogram");
         }
+        if (n > mean.length) {
+            throw new IllegalArgumentException(
+                    String.format("Target digest only has room for %d centroids, not %d", mean.length, n));
+        }
 
+        clear();
+        setMinMax(min, max);
+        lastUsedCell = n;
+        return encoding;
+    }
+
+    /**
+     * Reads centroid i in the verbose or small format.
+     */
+    void readCentroid(ByteBuffer buf, boolean small, int i) {
+        if (small) {
+            weight[i] = buf.getFloat();
+            mean[i] = buf.getFloat();
+        } else {
+            weight[i] = buf.getDouble();
+            mean[i] = buf.getDouble();
+        }
+        totalWeight += weight[i];
+    }
+
+    /**
+     * Java serialization sends a {@link SerializationProxy} in place of the digest so that only
+     * the live centroids go over the wire, in the compact format, instead of every buffer at full
+     * size. Unlike {@link #asBytes(ByteBuffer)}, this doesn't compress the digest down to the
+     * public compression, so a digest can be serialized any number of times without losing
+     * accuracy. Samples waiting in the buffer are merged at the internal compression, which is
+     * the same merge that the add that fills the buffer would do. Digests that record all of their
+     * data still write every field since the history has to go with them.
+     */
+    private Object writeReplace() {
+        if (data != null) {
+            return this;
+        }
+        return new SerializationProxy(this);
+    }
+
+    /**
+     * The serialized form of a digest. Besides the centroids this keeps the settings that the byte
+     * formats leave out, so the copy that comes back behaves exactly like the original.
+     * {@link #useWeightLimit} is shared by all digests rather than belonging to any one of them,
+     * so it isn't part of this.
+     */
+    private static final class SerializationProxy implements Serializable {
+        private final byte[] bytes;
+        private final double publicCompression;
+        private final double compression;
+        private final int size;
+        private final int bufferSize;
+        private final ScaleFunction scale;
+        private final boolean useAlternatingSort;
+        private final boolean useTwoLevelCompression;
+        private final int mergeCount;
+        private final boolean concurrentReads;
+        private final int incrementalSteps;
+
+        SerializationProxy(MergingDigest digest) {
+            digest.mergeNewValues();
+            ByteBuffer buf = ByteBuffer.allocate(digest.compactSize());
+            digest.putCompact(buf);
+            bytes = buf.array();
+            publicCompression = digest.publicCompression;
+            compression = digest.compression;
+            size = digest.mean.length;
+            bufferSize = digest.tempMean.length;
+            scale = digest.scale;
+            useAlternatingSort = digest.useAlternatingSort;
+            useTwoLevelCompression = digest.useTwoLevelCompression;
+            mergeCount = digest.mergeCount;
+            concurrentReads = digest.isConcurrentReads();
+            incrementalSteps = digest.incremental == null ? 0 : digest.incremental.stepsPerAdd;
+        }
+
+        private Object readResolve() {
+            MergingDigest r = new MergingDigest(publicCompression, compression, size, bufferSize);
+            readInto(ByteBuffer.wrap(bytes), r);
+            r.scale = scale;
+            r.useAlternatingSort = useAlternatingSort;
+            r.useTwoLevelCompression = useTwoLevelCompression;
+            r.mergeCount = mergeCount;
+            r.setConcurrentReads(concurrentReads);
+            r.setIncrementalMerge(incrementalSteps);
+            return r;
+        }
     }
 
     @Override
@@ -0,0 +1,359 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.io.Serializable;
+
+/**
+ * Read access to centroids in order of increasing mean, along with the cdf and quantile
+ * interpolation that {@link MergingDigest}, {@link FrozenDigest} and {@link DigestView} share.
+ * Each of them keeps its centroids in its own way and finds the centroids a query needs in its
+ * own way, but the arithmetic on them is all here so that the answers agree to the last bit.
+ */
+abstract class SortedCentroids {
+    /**
+     * Returns the number of centroids.
+     */
+    abstract int count();
+
+    abstract double mean(int i);
+
+    abstract double weight(int i);
+
+    /**
+     * Returns the total weight of the centroids before centroid i.
+     */
+    abstract double weightBefore(int i);
+
+    /**
+     * Returns the index of the first centroid with a mean &ge; x, or the count if there is none.
+     */
+    abstract int firstNotBelow(double x);
+
+    /**
+     * Returns the index of the first centroid whose center of mass is past index, or the count if
+     * there is none.
+     */
+    abstract int firstCenterAbove(double index);
+
+    /**
+     * Computes the cdf of sorted centroids.
+     */
+    static double cdf(SortedCentroids c, double x, double totalWeight, double min, double max) {
+        int n = c.count();
+        if (n == 0) {
+            // no data to examine
+            return Double.NaN;
+        } else if (n == 1) {
+            // exactly one centroid, should have max==min
+            double width = max - min;
+            if (x < min) {
+                return 0;
+            } else if (x > max) {
+                return 1;
+            } else if (x - min <= width) {
+                // min and max are too close together to do any viable interpolation
+                return 0.5;
+            } else {
+                // interpolate if somehow we have weight > 0 and max != min
+                return (x - min) / (max - min);
+            }
+        } else {
+            if (x < min) {
+                return 0;
+            }
+            double firstWeight = c.weight(0);
+            double lastWeight = c.weight(n - 1);
+
+            if (x > max) {
+                return 1;
+            }
+
+            // check for the left tail
+            if (x < c.mean(0)) {
+                // note that this is different than mean[0] > min
+                // ... this guarantees we divide by non-zero number and interpolation works
+                if (c.mean(0) - min > 0) {
+                    // must be a sample exactly at min
+                    if (x == min) {
+                        return 0.5 / totalWeight;
+                    } else {
+                        return (1 + (x - min) / (c.mean(0) - min) * (firstWeight / 2 - 1)) / totalWeight;
+                    }
+                } else {
+                    // this should be redundant with the check x < min
+                    return 0;
+                }
+            }
+            assert x >= c.mean(0);
+
+            // and the right tail
+            if (x > c.mean(n - 1)) {
+                if (max - c.mean(n - 1) > 0) {
+                    if (x == max) {
+                        return 1 - 0.5 / totalWeight;
+                    } else {
+                        // there has to be a single sample exactly at max
+                        double dq = (1 + (max - x) / (max - c.mean(n - 1)) * (lastWeight / 2 - 1)) / totalWeight;
+                        return 1 - dq;
+                    }
+                } else {
+                    return 1;
+                }
+            }
+
+            // we know that there are at least two centroids and mean[0] <= x <= mean[n-1]
+            // that means that there are either one or more consecutive centroids all at exactly x
+            // or there are consecutive centroids, c0 < x < c1
+            // the first centroid not to the left of x tells us which
+            int it = c.firstNotBelow(x);
+            if (it == n - 1 && c.mean(it) == x) {
+                // only the last centroid is at x
+                return 1 - 0.5 / totalWeight;
+            }
+            if (c.mean(it) == x) {
+                // we have one or more centroids == x, treat them as one
+                // dw will accumulate the weight of all of the centroids at x
+                double weightSoFar = c.weightBefore(it);
+                double dw = 0;
+                while (it < n && c.mean(it) == x) {
+                    dw += c.weight(it);
+                    it++;
+                }
+                return (weightSoFar + dw / 2) / totalWeight;
+            }
+
+            // mean[it - 1] < x < mean[it] so step back to the left centroid of the pair
+            it--;
+            assert c.mean(it) < x && x < c.mean(it + 1);
+            double weightSoFar = c.weightBefore(it);
+            double leftWeight = c.weight(it);
+            double rightWeight = c.weight(it + 1);
+            // check for floating point madness
+            if (c.mean(it + 1) - c.mean(it) > 0) {
+                // note how we handle singleton centroids here
+                // the point is that for singleton centroids, we know that their entire
+                // weight is exactly at the centroid and thus shouldn't be involved in
+                // interpolation
+                double leftExcludedW = 0;
+                double rightExcludedW = 0;
+                if (leftWeight == 1) {
+                    if (rightWeight == 1) {
+                        // two singletons means no interpolation
+                        // left singleton is in, right is out
+                        return (weightSoFar + 1) / totalWeight;
+                    } else {
+                        leftExcludedW = 0.5;
+                    }
+                } else if (rightWeight == 1) {
+                    rightExcludedW = 0.5;
+                }
+                double dw = (leftWeight + rightWeight) / 2;
+
+                // can't have double singleton (handled that earlier)
+                assert dw > 1;
+                assert (leftExcludedW + rightExcludedW) <= 0.5;
+
+                // adjust endpoints for any singleton
+                double left = c.mean(it);
+                double right = c.mean(it + 1);
+
+                double dwNoSingleton = dw - leftExcludedW - rightExcludedW;
+
+                // adjustments have only limited effect on endpoints
+                assert dwNoSingleton > dw / 2;
+                assert right - left > 0;
+                double base = weightSoFar + leftWeight / 2 + leftExcludedW;
+                return (base + dwNoSingleton * (x - left) / (right - left)) / totalWeight;
+            } else {
+                // this is simply caution against floating point madness
+                // it is conceivable that the centroids will be different
+                // but too near to allow safe interpolation
+                double dw = (leftWeight + rightWeight) / 2;
+                return (weightSoFar + dw) / totalWeight;
+            }
+        }
+    }
+
+    /**
+     * Computes a quantile of sorted centroids.
+     */
+    static double quantile(SortedCentroids c, double q, double totalWeight, double min, double max) {
+        int n = c.count();
+        if (n == 0) {
+            // no centroids means no data, no way to get a quantile
+            return Double.NaN;
+        } else if (n == 1) {
+            // with one data point, all quantiles lead to Rome
+            return c.mean(0);
+        }
+
+        // we know that there are at least two centroids now
+        double firstWeight = c.weight(0);
+        double lastWeight = c.weight(n - 1);
+
+        // if values were stored in a sorted array, index would be the offset we are interested in
+        final double index = q * totalWeight;
+
+        // beyond the boundaries, we return min or max
+        // usually, the first centroid will have unit weight so this will make it moot
+        if (index < 1) {
+            return min;
+        }
+
+        // if the left centroid has more than one sample, we still know
+        // that one sample occurred at min so we can do some interpolation
+        if (firstWeight > 1 && index < firstWeight / 2) {
+            // there is a single sample at min so we interpolate with less weight
+            return min + (index - 1) / (firstWeight / 2 - 1) * (c.mean(0) - min);
+        }
+
+        // usually the last centroid will have unit weight so this test will make it moot
+        if (index > totalWeight - 1) {
+            return max;
+        }
+
+        // if the right-most centroid has more than one sample, we still know
+        // that one sample occurred at max so we can do some interpolation
+        if (lastWeight > 1 && totalWeight - index <= lastWeight / 2) {
+            return max - (totalWeight - index - 1) / (lastWeight / 2 - 1) * (max - c.mean(n - 1));
+        }
+
+        // in between extremes we interpolate between centroids
+        // the center of centroid i is at cumulative[i] + weight[i] / 2 so the first
+        // center past index tells us which pair of centroids brackets it
+        int i = c.firstCenterAbove(index) - 1;
+        assert i >= 0;
+        if (i < n - 1) {
+            double leftWeight = c.weight(i);
+            double rightWeight = c.weight(i + 1);
+            double weightSoFar = c.weightBefore(i) + leftWeight / 2;
+            double dw = (leftWeight + rightWeight) / 2;
+            // centroids i and i+1 bracket our current point
+
+            // check for unit weight
+            double leftUnit = 0;
+            if (leftWeight == 1) {
+                if (index - weightSoFar < 0.5) {
+                    // within the singleton's sphere
+                    return c.mean(i);
+                } else {
+                    leftUnit = 0.5;
+                }
+            }
+            double rightUnit = 0;
+            if (rightWeight == 1) {
+                if (weightSoFar + dw - index <= 0.5) {
+                    // no interpolation needed near singleton
+                    return c.mean(i + 1);
+                }
+                rightUnit = 0.5;
+            }
+            double z1 = index - weightSoFar - leftUnit;
+            double z2 = weightSoFar + dw - index - rightUnit;
+            return AbstractTDigest.weightedAverage(c.mean(i), z2, c.mean(i + 1), z1);
+        }
+        // we handled singleton at end up above
+        assert lastWeight > 1;
+        assert index <= totalWeight;
+        assert index >= totalWeight - lastWeight / 2;
+
+        // weightSoFar = totalWeight - lastWeight/2 (very nearly)
+        // so we interpolate out to max value ever seen
+        double z1 = index - totalWeight - lastWeight / 2.0;
+        double z2 = lastWeight / 2 - z1;
+        return AbstractTDigest.weightedAverage(c.mean(n - 1), z1, max, z2);
+    }
+
+    /**
+     * Sets cumulative[i] to the total of the first i weights for i from 0 to n.
+     */
+    static double[] fillCumulative(double[] weight, int n, double[] cumulative) {
+        cumulative[0] = 0;
+        for (int i = 0; i < n; i++) {
+            cumulative[i + 1] = cumulative[i] + weight[i];
+        }
+        return cumulative;
+    }
+
+    /**
+     * Centroids kept as an array of means and an array of cumulative weights, where cumulative[i]
+     * is the total weight of the centroids before i. Both are searched by bisection.
+     */
+    static final class Cumulative extends SortedCentroids implements Serializable {
+        double[] mean;
+        double[] cumulative;
+        int n;
+
+        Cumulative(double[] mean, double[] cumulative, int n) {
+            this.mean = mean;
+            this.cumulative = cumulative;
+            this.n = n;
+        }
+
+        @Override
+        int count() {
+            return n;
+        }
+
+        @Override
+        double mean(int i) {
+            return mean[i];
+        }
+
+        @Override
+        double weight(int i) {
+            return cumulative[i + 1] - cumulative[i];
+        }
+
+        @Override
+        double weightBefore(int i) {
+            return cumulative[i];
+        }
+
+        @Override
+        int firstNotBelow(double x) {
+            int lo = 0;
+            int hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mean[mid] < x) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        @Override
+        int firstCenterAbove(double index) {
+            int lo = 0;
+            int hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] + weight(mid) / 2 > index) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -70,6 +70,18 @@ public abstract class TDigest implements Serializable {
         return new AVLTreeDigest(compression);
     }
 
+    /**
+     * Creates a {@link ConcurrentMergingDigest} that many threads can add to at the same time.
+     *
+     * @param compression The compression parameter.  100 is a common value for normal uses.  1000 is extremely large.
+     *                    The number of centroids retained will be a smallish (usually less than 10) multiple of this number.
+     * @return the ConcurrentMergingDigest
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static TDigest createConcurrentDigest(double compression) {
+        return new ConcurrentMergingDigest(compression);
+    }
+
     /**
      * Creates a TDigest of whichever type is the currently recommended type.  MergingDigest is generally the best
      * known implementation right now.
@@ -97,8 +109,79 @@ public abstract class TDigest implements Serializable {
         }
     }
 
+    /**
+     * Checks that a weight from a block of samples could have been passed to {@link #add(double, int)}.
+     */
+    static void checkWeight(double w) {
+        if (!(w >= 1 && w <= Integer.MAX_VALUE && w == Math.rint(w))) {
+            throw new IllegalArgumentException("Weights must be positive whole numbers, got " + w);
+        }
+    }
+
     public abstract void add(List<? extends TDigest> others);
 
+    /**
+     * Adds a block of samples, each with unit weight. The effect is the same as calling
+     * {@link #add(double)} on each value in turn, but implementations may be able to do
+     * the bookkeeping once per block instead of once per sample. As with
+     * {@link #add(double[], double[], int, int)}, a NaN anywhere in the block is found before
+     * anything is added.
+     *
+     * @param values The array containing the samples.
+     * @param offset The index of the first sample to add.
+     * @param length The number of samples to add.
+     */
+    public void add(double[] values, int offset, int length) {
+        add(values, null, offset, length);
+    }
+
+    /**
+     * Adds a block of weighted samples. The effect is the same as calling {@link #add(double, int)}
+     * on each value in turn.
+     * <p>
+     * The whole block is checked before anything is added, so if any value is NaN or any weight
+     * is not a positive whole number that fits in an int, an {@link IllegalArgumentException} is
+     * thrown and the digest is left as it was.
+     *
+     * @param values  The array containing the samples.
+     * @param weights The weight of each sample, or null if every sample has unit weight.
+     * @param offset  The index of the first sample (and weight) to add.
+     * @param length  The number of samples to add.
+     */
+    public void add(double[] values, double[] weights, int offset, int length) {
+        checkRange(values.length, offset, length);
+        if (weights != null) {
+            checkRange(weights.length, offset, length);
+        }
+        for (int i = offset; i < offset + length; i++) {
+            checkValue(values[i]);
+            if (weights != null) {
+                checkWeight(weights[i]);
+            }
+        }
+        for (int i = offset; i < offset + length; i++) {
+            add(values[i], weights == null ? 1 : (int) weights[i]);
+        }
+    }
+
+    static void checkRange(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException(
+                    String.format("Invalid range [%d, %d) for array of length %d", offset, offset + length, arrayLength));
+        }
+    }
+
+    /**
+     * Returns an immutable copy of this digest that only keeps what is needed for queries and
+     * can be shared between threads without locking. Pending data is merged and compressed first.
+     *
+     * @return The frozen copy.
+     */
+    public FrozenDigest freeze() {
+        compress();
+        return new FrozenDigest(this);
+    }
+
     /**
      * Re-examines a t-digest to determine whether some centroids are redundant.  If your data are
      * perversely ordered, this may be a good idea.  Even if not, this may save 20% or so in space.
@@ -110,6 +193,19 @@ public abstract class TDigest implements Serializable {
      */
     public abstract void compress();
 
+    /**
+     * Removes all data, leaving an empty digest with the same compression and settings. The
+     * existing storage is kept so that a long-lived digest can be reused without allocating.
+     * <p>
+     * All of the digests in this library support this. It isn't abstract so that subclasses
+     * written before it was added still compile, and those just throw.
+     *
+     * @throws UnsupportedOperationException if the digest can't be cleared
+     */
+    public void clear() {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support clear()");
+    }
+
     /**
      * Returns the number of points that have been added to this TDigest.
      *
@@ -136,6 +232,38 @@ public abstract class TDigest implements Serializable {
      */
     public abstract double quantile(double q);
 
+    /**
+     * Returns the fraction of all points added which are &le; each of several cutoffs. The
+     * result is the same as calling {@link #cdf(double)} for each cutoff, but implementations
+     * may do the shared work only once.
+     *
+     * @param xs The cutoffs for the cdf.
+     * @return The fraction of all data which is less or equal to each cutoff, in the same order as xs.
+     */
+    public double[] cdfs(double... xs) {
+        double[] r = new double[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            r[i] = cdf(xs[i]);
+        }
+        return r;
+    }
+
+    /**
+     * Returns estimates of several quantiles at once. The result is the same as calling
+     * {@link #quantile(double)} for each fraction, but implementations may do the shared
+     * work only once.
+     *
+     * @param qs The desired fractions
+     * @return The estimated quantiles, in the same order as qs.
+     */
+    public double[] quantiles(double... qs) {
+        double[] r = new double[qs.length];
+        for (int i = 0; i < qs.length; i++) {
+            r[i] = quantile(qs[i]);
+        }
+        return r;
+    }
+
     /**
      * A {@link Collection} that lets you go through the centroids in ascending order by mean.  Centroids
      * returned will not be re-used, but may or may not share storage with this TDigest.
@@ -0,0 +1,108 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Static utility methods for working with collections of digests.
+ */
+public final class TDigests {
+    /**
+     * How many input digests are merged directly into each leaf of the merge tree.
+     */
+    static final int LEAF_SIZE = 64;
+
+    private TDigests() {
+    }
+
+    /**
+     * Merges a large number of digests using all of the threads of a fork-join pool.
+     * <p>
+     * The inputs are cut into batches of {@link #LEAF_SIZE} digests which are merged into
+     * intermediate {@link MergingDigest}s, and these are then combined pairwise in a balanced
+     * binary tree. The shape of the tree depends only on the number of inputs, and each node
+     * always puts its left half before its right half, so the result depends only on the order
+     * of the inputs and not on the size of the pool or on how the work gets scheduled. Retrying
+     * a merge gives exactly the same digest.
+     * <p>
+     * Intermediate nodes are kept at the internal compression of {@link MergingDigest} and only
+     * the final result is compressed to the requested compression, so the accuracy is about the
+     * same as merging everything in one go.
+     * <p>
+     * As with {@link TDigest#add(java.util.List)}, each input is compressed as it is read. Since
+     * that happens on the pool's threads, no digest should appear more than once in the inputs
+     * and the inputs must not be changed by other threads while the merge runs.
+     *
+     * @param digests     The digests to merge.
+     * @param compression The compression factor of the result.
+     * @param pool        The pool to run the merge on.
+     * @return A new digest with the contents of all of the inputs.
+     */
+    public static MergingDigest parallelMerge(Collection<? extends TDigest> digests, double compression, ForkJoinPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Need a pool to run the merge");
+        }
+        TDigest[] inputs = digests.toArray(new TDigest[digests.size()]);
+        for (TDigest digest : inputs) {
+            if (digest == null) {
+                throw new IllegalArgumentException("Can't merge a null digest");
+            }
+        }
+        MergingDigest r = pool.invoke(new MergeTask(inputs, 0, inputs.length, compression));
+        r.compress();
+        return r;
+    }
+
+    /**
+     * Merges the inputs in [start, end) into a fresh digest that has not been compressed to
+     * the public compression.
+     */
+    private static final class MergeTask extends RecursiveTask<MergingDigest> {
+        private final TDigest[] inputs;
+        private final int start;
+        private final int end;
+        private final double compression;
+
+        MergeTask(TDigest[] inputs, int start, int end, double compression) {
+            this.inputs = inputs;
+            this.start = start;
+            this.end = end;
+            this.compression = compression;
+        }
+
+        @Override
+        protected MergingDigest compute() {
+            MergingDigest r = new MergingDigest(compression);
+            if (end - start <= LEAF_SIZE) {
+                r.add(Arrays.asList(inputs).subList(start, end));
+            } else {
+                int mid = (start + end) >>> 1;
+                MergeTask left = new MergeTask(inputs, start, mid, compression);
+                MergeTask right = new MergeTask(inputs, mid, end, compression);
+                left.fork();
+                MergingDigest rightResult = right.compute();
+                r.addPartials(Arrays.asList(left.join(), rightResult));
+            }
+            return r;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A digest of just the recent past, such as the last minute.
+ * <p>
+ * Time is cut into slots of a fixed length and each slot gets its own {@link MergingDigest},
+ * kept in a ring. Samples go into the slot for the current time. When time moves on to a new
+ * slot, the slots that have fallen out of the window are cleared and reused, so once the ring
+ * has been allocated the window doesn't allocate anything more.
+ * <p>
+ * Queries see the current slot and the slots before it, so with 60 slots of one second each a
+ * query covers between 59 and 60 seconds of data depending on how far into the current second
+ * it is. Merging the older slots is the expensive part of a query and is only done once each time
+ * the slots rotate. After that, a query only has to combine the cached merge with the current
+ * slot, and only if something has been added since the last query.
+ * <p>
+ * All methods are synchronized so that one thread can report on the window while others add to
+ * it.
+ */
+public class WindowedDigest extends DelegatingDigest {
+    private final double compression;
+    private final long slotMillis;
+    private final MergingDigest[] slots;
+
+    // the slot that samples are going into and the number of the time slot it is for
+    private int current = 0;
+    private long slotNumber;
+    private boolean started = false;
+
+    // every slot but the current one merged together, rebuilt when the slots rotate. The slots
+    // are merged as partials so none of them is ever compressed down to the public compression,
+    // which would lose a little more accuracy with every query
+    private final MergingDigest history;
+    private boolean historyValid = false;
+    // the history plus the current slot, rebuilt after adds
+    private final MergingDigest window;
+    private boolean windowValid = false;
+    private final List<MergingDigest> parts = new ArrayList<>();
+
+    /**
+     * Creates a window made of slotCount slots of slotMillis each.
+     *
+     * @param compression The compression factor of each slot and of the merged window.
+     * @param slotCount   How many slots make up the window.
+     * @param slotMillis  How long each slot lasts in milliseconds.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public WindowedDigest(double compression, int slotCount, long slotMillis) {
+        if (slotCount < 1) {
+            throw new IllegalArgumentException("Need at least one slot, got " + slotCount);
+        }
+        if (slotMillis < 1) {
+            throw new IllegalArgumentException("Slots have to last at least a millisecond, got " + slotMillis);
+        }
+        this.compression = compression;
+        this.slotMillis = slotMillis;
+        slots = new MergingDigest[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new MergingDigest(compression);
+        }
+        history = new MergingDigest(compression);
+        window = new MergingDigest(compression);
+    }
+
+    /**
+     * The clock that decides which slot is current. Subclasses can override this to use some
+     * other notion of time.
+     *
+     * @return The current time in milliseconds.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Moves the current slot up to the present, clearing the slots that are passed over.
+     */
+    private void rotate() {
+        long now = currentTimeMillis() / slotMillis;
+        if (!started) {
+            slotNumber = now;
+            started = true;
+        } else if (now > slotNumber) {
+            // a clock that goes backwards just keeps filling the current slot
+            long steps = Math.min(now - slotNumber, slots.length);
+            for (long i = 0; i < steps; i++) {
+                current = (current + 1) % slots.length;
+                slots[current].clear();
+            }
+            slotNumber = now;
+            historyValid = false;
+            windowValid = false;
+        }
+    }
+
+    /**
+     * Brings the merged window up to date.
+     */
+    @Override
+    MergingDigest digest() {
+        rotate();
+        if (!historyValid) {
+            // oldest first, just as if the samples had all gone into one digest
+            parts.clear();
+            for (int i = 1; i < slots.length; i++) {
+                MergingDigest slot = slots[(current + i) % slots.length];
+                if (slot.size() > 0) {
+                    parts.add(slot);
+                }
+            }
+            history.clear();
+            history.addPartials(parts);
+            historyValid = true;
+            windowValid = false;
+        }
+        if (!windowValid) {
+            parts.clear();
+            if (history.size() > 0) {
+                parts.add(history);
+            }
+            if (slots[current].size() > 0) {
+                parts.add(slots[current]);
+            }
+            window.clear();
+            window.addPartials(parts);
+            windowValid = true;
+        }
+        return window;
+    }
+
+    /**
+     * Returns the digest that samples are going into right now.
+     */
+    private MergingDigest slot() {
+        rotate();
+        windowValid = false;
+        return slots[current];
+    }
+
+    @Override
+    public synchronized void add(double x, int w) {
+        slot().add(x, w);
+    }
+
+    @Override
+    public synchronized void add(double x) {
+        slot().add(x);
+    }
+
+    @Override
+    public synchronized void add(double[] values, int offset, int length) {
+        slot().add(values, offset, length);
+    }
+
+    @Override
+    public synchronized void add(double[] values, double[] weights, int offset, int length) {
+        slot().add(values, weights, offset, length);
+    }
+
+    @Override
+    public synchronized void add(List<? extends TDigest> others) {
+        slot().add(others);
+    }
+
+    @Override
+    public synchronized void add(TDigest other) {
+        slot().add(other);
+    }
+
+    /**
+     * Empties every slot. The current slot carries on from the present.
+     */
+    @Override
+    public synchronized void clear() {
+        for (MergingDigest slot : slots) {
+            slot.clear();
+        }
+        history.clear();
+        window.clear();
+        historyValid = false;
+        windowValid = false;
+    }
+
+    @Override
+    public double compression() {
+        return compression;
+    }
+
+    @Override
+    public synchronized void setScaleFunction(ScaleFunction scaleFunction) {
+        super.setScaleFunction(scaleFunction);
+        for (MergingDigest slot : slots) {
+            slot.setScaleFunction(scaleFunction);
+        }
+        history.setScaleFunction(scaleFunction);
+        window.setScaleFunction(scaleFunction);
+        historyValid = false;
+        windowValid = false;
+    }
+
+    /**
+     * Samples are forgotten as they expire so there is no way to keep their history.
+     */
+    @Override
+    public TDigest recordAllData() {
+        throw new UnsupportedOperationException("Can't record data in a windowed digest");
+    }
+
+    @Override
+    public String toString() {
+        return "Windowed-" + slots.length + "x" + slotMillis + "ms-" + window;
+    }
+}
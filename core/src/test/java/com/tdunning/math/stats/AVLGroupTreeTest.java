@@ -111,4 +111,23 @@ public class AVLGroupTreeTest extends AbstractTest {
         }
     }
 
+    @Test
+    public void testInPlaceUpdateKeepsSums() {
+        AVLGroupTree x = new AVLGroupTree(false);
+        for (int i = 0; i < 100; ++i) {
+            x.add(i, 1, null);
+        }
+        // bump counts without moving any centroid
+        for (int node = x.first(); node != IntAVLTree.NIL; node = x.next(node)) {
+            x.update(node, x.mean(node), x.count(node) + 2, null, true);
+        }
+        assertEquals(300, x.sum());
+        long expected = 0;
+        for (int node = x.first(); node != IntAVLTree.NIL; node = x.next(node)) {
+            assertEquals(expected, x.headSum(node));
+            assertEquals(node, x.floorSum(expected));
+            expected += x.count(node);
+        }
+    }
+
 }
@@ -0,0 +1,197 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakLingering;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// the merge thread can still be on its way out just after the executor terminates, and the
+// threads of the default executor take a second of idling to go away
+@ThreadLeakLingering(linger = 3000)
+public class BackgroundMergingDigestTest extends TDigestTest {
+    private static ThreadPoolExecutor executor;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        TDigestTest.setup("background");
+        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        // a thread started lazily by the first test would look like a leak from that test
+        executor.prestartAllCoreThreads();
+    }
+
+    @AfterClass
+    public static void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    protected DigestFactory factory(final double compression) {
+        return new DigestFactory() {
+            @Override
+            public TDigest create() {
+                return new BackgroundMergingDigest(compression, executor);
+            }
+        };
+    }
+
+    @Override
+    protected TDigest fromBytes(ByteBuffer bytes) {
+        return MergingDigest.fromBytes(bytes);
+    }
+
+    /**
+     * With an executor that never runs anything, the first buffer is handed off and the second
+     * one fills. Adding one more sample has to wait for the first merge to finish.
+     */
+    @Test
+    public void testBackPressure() throws InterruptedException {
+        final DelayedExecutor delayed = new DelayedExecutor();
+        final BackgroundMergingDigest digest = new BackgroundMergingDigest(100, delayed);
+        int capacity = new MergingDigest(100).incomingCapacity();
+        Random gen = getRandom();
+        for (int i = 0; i < 2 * capacity - 1; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        final double last = gen.nextGaussian();
+        assertEquals(1, delayed.waiting());
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                digest.add(last);
+            }
+        });
+        writer.start();
+        writer.join(200);
+        assertTrue("Writer should be blocked", writer.isAlive());
+
+        delayed.runAll();
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        delayed.runAll();
+        assertEquals(2 * capacity, digest.size());
+    }
+
+    @Test
+    public void testSameAsMergingDigest() {
+        Random gen = getRandom();
+        double[] data = new double[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextGaussian();
+        }
+        BackgroundMergingDigest background = new BackgroundMergingDigest(100, executor);
+        for (int i = 0; i < data.length / 2; i++) {
+            background.add(data[i]);
+        }
+        background.add(data, data.length / 2, data.length / 2);
+
+        Arrays.sort(data);
+        assertEquals(data.length, background.size());
+        assertEquals(data[0], background.getMin(), 0);
+        assertEquals(data[data.length - 1], background.getMax(), 0);
+        for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+            double x = Dist.quantile(q, data);
+            assertEquals(q, background.cdf(x), 0.005);
+        }
+    }
+
+    /**
+     * A copy made by Java serialization has no executor of its own so it has to be able to carry on
+     * with the default one.
+     */
+    @Test
+    public void testJavaSerialization() throws IOException, ClassNotFoundException {
+        Random gen = getRandom();
+        int capacity = new MergingDigest(100).incomingCapacity();
+        BackgroundMergingDigest digest = new BackgroundMergingDigest(100, executor);
+        digest.setScaleFunction(ScaleFunction.K_3);
+        for (int i = 0; i < capacity + 17; i++) {
+            digest.add(gen.nextGaussian());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(digest);
+        }
+        // only the merged centroids go over the wire, not the sample buffers
+        assertTrue(bytes.size() < 8 * capacity);
+        BackgroundMergingDigest copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (BackgroundMergingDigest) in.readObject();
+        }
+        assertEquals(digest.size(), copy.size());
+        assertEquals(ScaleFunction.K_3, copy.scale);
+
+        // enough to hand off several buffers to the default executor
+        for (int i = 0; i < 5 * capacity; i++) {
+            double x = gen.nextGaussian();
+            digest.add(x);
+            copy.add(x);
+        }
+        assertEquals(digest.size(), copy.size());
+        assertEquals(digest.getMin(), copy.getMin(), 0);
+        assertEquals(digest.getMax(), copy.getMax(), 0);
+        for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+            assertEquals(digest.quantile(q), copy.quantile(q), 0);
+        }
+    }
+
+    /**
+     * Holds on to tasks until told to run them.
+     */
+    private static class DelayedExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        synchronized int waiting() {
+            return tasks.size();
+        }
+
+        void runAll() {
+            List<Runnable> todo;
+            synchronized (this) {
+                todo = new ArrayList<>(tasks);
+                tasks.clear();
+            }
+            for (Runnable task : todo) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrentMergingDigestTest extends TDigestTest {
+    @BeforeClass
+    public static void setup() throws IOException {
+        TDigestTest.setup("concurrent");
+    }
+
+    protected DigestFactory factory(final double compression) {
+        return new DigestFactory() {
+            @Override
+            public TDigest create() {
+                return new ConcurrentMergingDigest(compression, 4);
+            }
+        };
+    }
+
+    @Override
+    protected TDigest fromBytes(ByteBuffer bytes) {
+        return MergingDigest.fromBytes(bytes);
+    }
+
+    @Test
+    public void testManyWriters() throws InterruptedException, ExecutionException {
+        final int threads = 8;
+        final int perThread = 200_000;
+        final TDigest digest = new ConcurrentMergingDigest(100, 4);
+        final double[][] data = new double[threads][perThread];
+        Random gen = getRandom();
+        for (double[] row : data) {
+            for (int i = 0; i < perThread; i++) {
+                row[i] = gen.nextGaussian();
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (final double[] row : data) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (double x : row) {
+                            digest.add(x);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        double[] all = new double[threads * perThread];
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(data[i], 0, all, i * perThread, perThread);
+        }
+        Arrays.sort(all);
+
+        assertEquals(all.length, digest.size());
+        assertEquals(all[0], digest.getMin(), 0);
+        assertEquals(all[all.length - 1], digest.getMax(), 0);
+        for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+            double x = Dist.quantile(q, all);
+            assertEquals(q, digest.cdf(x), 0.005);
+        }
+    }
+}
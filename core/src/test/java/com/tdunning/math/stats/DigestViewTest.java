@@ -0,0 +1,190 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class DigestViewTest extends AbstractTest {
+    private static final double[] QUANTILES = {0, 1e-6, 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1 - 1e-6, 1};
+
+    private static ByteBuffer verbose(TDigest digest) {
+        ByteBuffer buf = ByteBuffer.allocate(digest.byteSize());
+        digest.asBytes(buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer small(TDigest digest) {
+        ByteBuffer buf = ByteBuffer.allocate(digest.smallByteSize());
+        digest.asSmallBytes(buf);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * The view should give exactly the same answers as the digest read back by fromBytes.
+     */
+    private static void checkSameAnswers(ByteBuffer buf, Random gen) {
+        DigestView view = new DigestView(buf);
+        assertEquals(0, buf.position());
+        MergingDigest digest = MergingDigest.fromBytes(buf);
+        assertEquals(buf.position(), view.byteSize());
+        // centroids() compresses, which can move min and max to the float means of the small
+        // format, so the probe points come from a separate copy
+        buf.rewind();
+        MergingDigest probes = MergingDigest.fromBytes(buf);
+
+        assertEquals(digest.size(), view.size());
+        assertEquals(digest.centroidCount(), view.centroidCount());
+        assertEquals(digest.getMin(), view.getMin(), 0);
+        assertEquals(digest.getMax(), view.getMax(), 0);
+        assertEquals(digest.compression(), view.compression(), 0);
+
+        for (double q : QUANTILES) {
+            assertEquals(digest.quantile(q), view.quantile(q), 0);
+        }
+        for (int i = 0; i < 1000; i++) {
+            double q = gen.nextDouble();
+            assertEquals(digest.quantile(q), view.quantile(q), 0);
+        }
+
+        // probe the ends, every centroid and points in between
+        assertEquals(digest.cdf(digest.getMin() - 1), view.cdf(digest.getMin() - 1), 0);
+        assertEquals(digest.cdf(digest.getMin()), view.cdf(digest.getMin()), 0);
+        assertEquals(digest.cdf(digest.getMax()), view.cdf(digest.getMax()), 0);
+        assertEquals(digest.cdf(digest.getMax() + 1), view.cdf(digest.getMax() + 1), 0);
+        double previous = digest.getMin();
+        for (Centroid c : probes.centroids()) {
+            double x = c.mean();
+            assertEquals(digest.cdf(x), view.cdf(x), 0);
+            double between = (previous + x) / 2;
+            assertEquals(digest.cdf(between), view.cdf(between), 0);
+            previous = x;
+        }
+    }
+
+    @Test
+    public void testSameAnswers() {
+        Random gen = getRandom();
+        for (int n : new int[]{1, 2, 5, 100, 100000}) {
+            MergingDigest digest = new MergingDigest(100);
+            for (int i = 0; i < n; i++) {
+                digest.add(gen.nextGaussian());
+            }
+            checkSameAnswers(verbose(digest), gen);
+            checkSameAnswers(small(digest), gen);
+        }
+    }
+
+    @Test
+    public void testRepeatedValues() {
+        Random gen = getRandom();
+        MergingDigest digest = new MergingDigest(100);
+        for (int i = 0; i < 100000; i++) {
+            digest.add(gen.nextInt(10));
+        }
+        checkSameAnswers(verbose(digest), gen);
+        checkSameAnswers(small(digest), gen);
+    }
+
+    @Test
+    public void testMerged() {
+        Random gen = getRandom();
+        List<TDigest> parts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            MergingDigest part = new MergingDigest(50);
+            for (int j = 0; j < 1000; j++) {
+                part.add(gen.nextDouble() * i);
+            }
+            parts.add(part);
+        }
+        MergingDigest digest = new MergingDigest(50);
+        digest.add(parts);
+        checkSameAnswers(verbose(digest), gen);
+        checkSameAnswers(small(digest), gen);
+    }
+
+    @Test
+    public void testEmpty() {
+        DigestView view = new DigestView(verbose(new MergingDigest(100)));
+        assertEquals(0, view.size());
+        assertTrue(Double.isNaN(view.quantile(0.5)));
+        assertTrue(Double.isNaN(view.cdf(0)));
+    }
+
+    @Test
+    public void testWrapMany() {
+        Random gen = getRandom();
+        MergingDigest[] digests = new MergingDigest[5];
+        int bytes = 0;
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = new MergingDigest(100);
+            for (int j = 0; j < 1000; j++) {
+                digests[i].add(gen.nextGaussian() + i);
+            }
+            bytes += digests[i].smallByteSize();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        for (MergingDigest digest : digests) {
+            digest.asSmallBytes(buf);
+        }
+        buf.flip();
+
+        DigestView view = null;
+        for (MergingDigest digest : digests) {
+            if (view == null) {
+                view = new DigestView(buf);
+            } else {
+                view.wrap(buf);
+            }
+            assertEquals(digest.quantile(0.5), view.quantile(0.5), 1e-6);
+            buf.position(buf.position() + view.byteSize());
+        }
+        assertEquals(bytes, buf.position());
+    }
+
+    @Test
+    public void testBadInput() {
+        ByteBuffer buf = verbose(new MergingDigest(100));
+        buf.putInt(0, 17);
+        try {
+            new DigestView(buf);
+            fail("Should have noticed the bad encoding");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        MergingDigest digest = new MergingDigest(100);
+        for (int i = 0; i < 100; i++) {
+            digest.add(i);
+        }
+        buf = verbose(digest);
+        buf.limit(buf.limit() - 1);
+        try {
+            new DigestView(buf);
+            fail("Should have noticed the missing byte");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
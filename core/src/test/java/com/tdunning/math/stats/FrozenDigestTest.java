@@ -0,0 +1,158 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class FrozenDigestTest extends AbstractTest {
+    private static final double[] QUANTILES = {0, 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1};
+
+    private MergingDigest gaussian(Random gen, int n) {
+        MergingDigest r = new MergingDigest(100);
+        for (int i = 0; i < n; i++) {
+            r.add(gen.nextGaussian());
+        }
+        return r;
+    }
+
+    @Test
+    public void testSameAnswers() {
+        MergingDigest digest = gaussian(getRandom(), 100000);
+        FrozenDigest frozen = digest.freeze();
+
+        assertEquals(digest.size(), frozen.size());
+        assertEquals(digest.centroidCount(), frozen.centroidCount());
+        assertEquals(digest.getMin(), frozen.getMin(), 0);
+        assertEquals(digest.getMax(), frozen.getMax(), 0);
+        assertEquals(digest.compression(), frozen.compression(), 0);
+        assertEquals(digest.getScaleFunction(), frozen.getScaleFunction());
+        for (double q : QUANTILES) {
+            double x = digest.quantile(q);
+            assertEquals(x, frozen.quantile(q), 0);
+            assertEquals(digest.cdf(x), frozen.cdf(x), 0);
+        }
+
+        Iterator<Centroid> ix = frozen.centroids().iterator();
+        for (Centroid c : digest.centroids()) {
+            Centroid other = ix.next();
+            assertEquals(c.mean(), other.mean(), 0);
+            assertEquals(c.count(), other.count());
+        }
+        assertFalse(ix.hasNext());
+
+        assertSame(frozen, frozen.freeze());
+    }
+
+    @Test
+    public void testFromAvlTree() {
+        AVLTreeDigest digest = new AVLTreeDigest(100);
+        Random gen = getRandom();
+        for (int i = 0; i < 100000; i++) {
+            digest.add(gen.nextDouble());
+        }
+        FrozenDigest frozen = digest.freeze();
+        assertEquals(digest.size(), frozen.size());
+        assertEquals(digest.centroidCount(), frozen.centroidCount());
+        for (double q : QUANTILES) {
+            assertEquals(q, frozen.cdf(frozen.quantile(q)), 0.005);
+            assertEquals(digest.quantile(q), frozen.quantile(q), 0.005);
+        }
+    }
+
+    @Test
+    public void testSerialization() {
+        FrozenDigest frozen = gaussian(getRandom(), 10000).freeze();
+
+        ByteBuffer buf = ByteBuffer.allocate(frozen.byteSize());
+        frozen.asBytes(buf);
+        assertEquals(buf.capacity(), buf.position());
+        buf.flip();
+        FrozenDigest copy = FrozenDigest.fromBytes(buf);
+        for (double q : QUANTILES) {
+            assertEquals(frozen.quantile(q), copy.quantile(q), 0);
+        }
+
+        buf = ByteBuffer.allocate(frozen.smallByteSize());
+        frozen.asSmallBytes(buf);
+        assertEquals(buf.capacity(), buf.position());
+        buf.flip();
+        MergingDigest small = MergingDigest.fromBytes(buf);
+        assertEquals(frozen.size(), small.size());
+        for (double q : QUANTILES) {
+            assertEquals(frozen.quantile(q), small.quantile(q), 1e-6);
+        }
+    }
+
+    @Test
+    public void testMergeInto() {
+        Random gen = getRandom();
+        List<TDigest> live = new ArrayList<>();
+        List<TDigest> frozen = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            MergingDigest d = gaussian(gen, 1000);
+            live.add(d);
+            frozen.add(d.freeze());
+        }
+
+        MergingDigest fromLive = new MergingDigest(100);
+        fromLive.add(live);
+        MergingDigest fromFrozen = new MergingDigest(100);
+        fromFrozen.add(frozen);
+        AVLTreeDigest tree = new AVLTreeDigest(100);
+        tree.add(frozen);
+
+        assertEquals(fromLive.size(), fromFrozen.size());
+        assertEquals(fromLive.size(), tree.size());
+        for (double q : QUANTILES) {
+            assertEquals(fromLive.quantile(q), fromFrozen.quantile(q), 0);
+            // the tree clusters differently, which moves the far tails around quite a bit in value
+            // but not in rank. Centroids near the median are big, so the ranks can differ more there
+            assertEquals(q, fromLive.cdf(tree.quantile(q)), 0.002 + 0.1 * q * (1 - q));
+        }
+    }
+
+    @Test
+    public void testImmutable() {
+        FrozenDigest frozen = gaussian(getRandom(), 1000).freeze();
+        try {
+            frozen.add(1);
+            fail("Frozen digests can't change");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            frozen.add(new double[]{1, 2}, 0, 2);
+            fail("Frozen digests can't change");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            frozen.setScaleFunction(ScaleFunction.K_3);
+            fail("Frozen digests can't change");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(1000, frozen.size());
+    }
+}
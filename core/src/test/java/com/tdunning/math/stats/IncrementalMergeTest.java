@@ -0,0 +1,232 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link MergingDigest#setIncrementalMerge(int)}.
+ */
+public class IncrementalMergeTest extends AbstractTest {
+    private static final double[] QUANTILES = {0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999};
+
+    private static MergingDigest incremental(double compression, int stepsPerAdd) {
+        MergingDigest r = new MergingDigest(compression);
+        r.setIncrementalMerge(stepsPerAdd);
+        return r;
+    }
+
+    private void checkAccuracy(TDigest digest, double[] sorted) {
+        assertEquals(sorted.length, digest.size());
+        assertEquals(sorted[0], digest.getMin(), 0);
+        assertEquals(sorted[sorted.length - 1], digest.getMax(), 0);
+        for (double q : QUANTILES) {
+            double x = Dist.quantile(q, sorted);
+            assertEquals(q, digest.cdf(x), 0.005);
+        }
+        assertEquals(0, digest.cdf(sorted[0] - 1), 0);
+        assertEquals(1, digest.cdf(sorted[sorted.length - 1] + 1), 0);
+    }
+
+    @Test
+    public void testClear() {
+        Random gen = getRandom();
+        MergingDigest digest = incremental(100, -1);
+        MergingDigest fresh = incremental(100, -1);
+        // leaves a merge part way done
+        for (int i = 0; i < 10_000 + 17; i++) {
+            digest.add(gen.nextDouble() * 100);
+        }
+        digest.clear();
+        assertEquals(0, digest.size());
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        for (int i = 0; i < 10_000; i++) {
+            double x = gen.nextGaussian();
+            digest.add(x);
+            fresh.add(x);
+        }
+        assertEquals(fresh.size(), digest.size());
+        assertEquals(fresh.getMin(), digest.getMin(), 0);
+        for (double q : QUANTILES) {
+            assertEquals(fresh.quantile(q), digest.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void testAccuracy() {
+        Random gen = getRandom();
+        double[] data = new double[200_000];
+        MergingDigest digest = incremental(100, -1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextGaussian();
+            digest.add(data[i]);
+            // size has to be right without merging anything
+            assertEquals(i + 1, digest.size());
+        }
+        Arrays.sort(data);
+        checkAccuracy(digest, data);
+        // the default budget always keeps up
+        assertEquals(0, digest.lateJobs());
+
+        digest.compress();
+        assertTrue(digest.centroidCount() < 2 * digest.compression());
+        checkAccuracy(digest, data);
+    }
+
+    @Test
+    public void testSmallBudget() {
+        Random gen = getRandom();
+        double[] data = new double[100_000];
+        MergingDigest digest = incremental(100, 1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextDouble();
+            digest.add(data[i]);
+        }
+        assertTrue(digest.lateJobs() > 0);
+        Arrays.sort(data);
+        checkAccuracy(digest, data);
+    }
+
+    /**
+     * Queries in the middle of a job have to finish it and must not lose anything.
+     */
+    @Test
+    public void testInterleavedQueries() {
+        Random gen = getRandom();
+        double[] data = new double[50_000];
+        MergingDigest digest = incremental(50, -1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextInt(1000);
+            digest.add(data[i]);
+            if (gen.nextInt(5000) == 0) {
+                digest.quantile(0.5);
+            }
+        }
+        Arrays.sort(data);
+        checkAccuracy(digest, data);
+    }
+
+    @Test
+    public void testSerialization() {
+        Random gen = getRandom();
+        MergingDigest digest = incremental(100, -1);
+        for (int i = 0; i < 10_000; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        ByteBuffer buf = ByteBuffer.allocate(digest.byteSize());
+        digest.asBytes(buf);
+        buf.flip();
+        MergingDigest copy = MergingDigest.fromBytes(buf);
+        assertEquals(digest.size(), copy.size());
+        assertEquals(digest.centroidCount(), copy.centroidCount());
+        for (double q : QUANTILES) {
+            assertEquals(digest.quantile(q), copy.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        Random gen = getRandom();
+        double[] data = new double[40_000];
+        MergingDigest other = new MergingDigest(100);
+        MergingDigest digest = incremental(100, -1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextGaussian();
+            if (i % 2 == 0) {
+                other.add(data[i]);
+            } else {
+                digest.add(data[i]);
+            }
+        }
+        // the other digest arrives as compressed centroids, each added as a single weighted point,
+        // so ranks can be off by as much as the biggest of those centroids
+        digest.add(other);
+        double biggest = 0;
+        for (Centroid c : other.centroids()) {
+            biggest = Math.max(biggest, c.count());
+        }
+        Arrays.sort(data);
+        assertEquals(data.length, digest.size());
+        assertEquals(data[0], digest.getMin(), 0);
+        assertEquals(data[data.length - 1], digest.getMax(), 0);
+        for (double q : QUANTILES) {
+            assertEquals(q, digest.cdf(Dist.quantile(q, data)), 0.005 + biggest / data.length);
+        }
+    }
+
+    /**
+     * Merges with other digests and turning the mode off both have to wait for a job in progress.
+     */
+    @Test
+    public void testModeChanges() {
+        Random gen = getRandom();
+        double[] data = new double[30_000];
+        MergingDigest digest = incremental(100, 1);
+        MergingDigest other = new MergingDigest(100);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextGaussian();
+            if (i == 10_000 + 17) {
+                // with a budget of one step, a job is certainly still running here
+                List<MergingDigest> parts = new ArrayList<>();
+                parts.add(other);
+                digest.addPartials(parts);
+            }
+            if (i == 20_000 + 17) {
+                digest.setIncrementalMerge(0);
+                assertFalse(digest.isIncrementalMerge());
+            }
+            if (i < 5_000) {
+                other.add(data[i]);
+            } else {
+                digest.add(data[i]);
+            }
+        }
+        Arrays.sort(data);
+        checkAccuracy(digest, data);
+    }
+
+    @Test
+    public void testExclusiveModes() {
+        MergingDigest digest = incremental(100, -1);
+        assertTrue(digest.isIncrementalMerge());
+        try {
+            digest.setConcurrentReads(true);
+            fail("Concurrent reads need ordinary merges");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            digest.recordAllData();
+            fail("Recording needs ordinary merges");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            digest.setIncrementalMerge(-2);
+            fail("Budget can't be negative");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -25,11 +25,20 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 //to freeze the tests with a particular seed, put the seed on the next line
 //@Seed("84527677CF03B566:A6FF596BDDB2D59D")
@@ -110,6 +119,692 @@ public class MergingDigestTest extends TDigestTest {
     }
 
 
+    /**
+     * Block adds should give exactly the same digest as adding one value at a time.
+     */
+    @Test
+    public void testBulkAdd() {
+        Random gen = getRandom();
+        double[] data = new double[100_000];
+        double[] weights = new double[data.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = gen.nextGaussian();
+            weights[i] = 1 + gen.nextInt(5);
+        }
+        // the merge expects unit weight samples at the extremes
+        data[0] = -100;
+        weights[0] = 1;
+        data[1] = 100;
+        weights[1] = 1;
+
+        MergingDigest one = new MergingDigest(100);
+        MergingDigest block = new MergingDigest(100);
+        MergingDigest weightedOne = new MergingDigest(100);
+        MergingDigest weightedBlock = new MergingDigest(100);
+        for (int i = 0; i < data.length; i++) {
+            one.add(data[i]);
+            weightedOne.add(data[i], (int) weights[i]);
+        }
+        int offset = 0;
+        while (offset < data.length) {
+            int n = Math.min(data.length - offset, 1 + gen.nextInt(5000));
+            block.add(data, offset, n);
+            weightedBlock.add(data, weights, offset, n);
+            offset += n;
+        }
+
+        assertSameCentroids(one, block);
+        assertSameCentroids(weightedOne, weightedBlock);
+        assertEquals(one.getMin(), block.getMin(), 0);
+        assertEquals(one.getMax(), block.getMax(), 0);
+    }
+
+    /**
+     * The k-way merge of a list of digests has to give exactly what copying and sorting gives.
+     * Recording digests still use the copy and sort so they give the reference answer.
+     */
+    @Test
+    public void testMergeListMatchesSort() {
+        Random gen = getRandom();
+        List<TDigest> parts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            TDigest part = i % 5 == 0 ? new AVLTreeDigest(100) : new MergingDigest(100);
+            // a recording digest can only absorb recorded centroids
+            part.recordAllData();
+            int n = gen.nextInt(3000);
+            for (int j = 0; j < n; j++) {
+                // lots of ties between digests
+                part.add(gen.nextInt(200) / 10.0);
+            }
+            parts.add(part);
+        }
+
+        MergingDigest streamed = new MergingDigest(100);
+        MergingDigest sorted = new MergingDigest(100);
+        sorted.recordAllData();
+        for (int i = 0; i < 1000; i++) {
+            double x = gen.nextGaussian();
+            streamed.add(x);
+            sorted.add(x);
+        }
+        streamed.compress();
+        sorted.compress();
+        streamed.add(parts);
+        sorted.add(parts);
+
+        assertSameCentroids(sorted, streamed);
+        assertEquals(sorted.size(), streamed.size());
+        assertEquals(sorted.getMin(), streamed.getMin(), 0);
+        assertEquals(sorted.getMax(), streamed.getMax(), 0);
+
+        MergingDigest empty = new MergingDigest(100);
+        empty.add(Collections.<TDigest>singletonList(new MergingDigest(100)));
+        assertEquals(0, empty.size());
+    }
+
+    /**
+     * Merging serialized digests straight from their bytes has to give exactly the same digest
+     * as reading them back and merging the results.
+     */
+    @Test
+    public void testAddSerialized() {
+        Random gen = getRandom();
+        List<ByteBuffer> inputs = new ArrayList<>();
+        List<MergingDigest> parts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            MergingDigest part = new MergingDigest(100);
+            int n = gen.nextInt(3000);
+            for (int j = 0; j < n; j++) {
+                // lots of ties between digests
+                part.add(gen.nextInt(200) / 10.0);
+            }
+            ByteBuffer buf;
+            if (i % 4 == 0) {
+                buf = ByteBuffer.allocate(part.byteSize());
+                part.asBytes(buf);
+            } else if (i % 4 == 1) {
+                buf = ByteBuffer.allocate(part.smallByteSize());
+                part.asSmallBytes(buf);
+            } else if (i % 4 == 2) {
+                buf = ByteBuffer.allocate(part.compactByteSize());
+                part.asCompactBytes(buf);
+            } else {
+                buf = ByteBuffer.allocate(part.quantizedByteSize(12));
+                part.asQuantizedBytes(buf, 12);
+            }
+            buf.flip();
+            inputs.add(buf);
+            parts.add(MergingDigest.fromBytes(buf.duplicate()));
+        }
+
+        MergingDigest streamed = new MergingDigest(100);
+        MergingDigest merged = new MergingDigest(100);
+        for (int i = 0; i < 1000; i++) {
+            double x = gen.nextGaussian();
+            streamed.add(x);
+            merged.add(x);
+        }
+        streamed.compress();
+        merged.compress();
+        streamed.addSerialized(inputs);
+        merged.addPartials(parts);
+
+        assertSameCentroids(merged, streamed);
+        assertEquals(merged.size(), streamed.size());
+        assertEquals(merged.getMin(), streamed.getMin(), 0);
+        assertEquals(merged.getMax(), streamed.getMax(), 0);
+        for (ByteBuffer buf : inputs) {
+            assertFalse(buf.hasRemaining());
+        }
+
+        MergingDigest empty = new MergingDigest(100);
+        ByteBuffer buf = ByteBuffer.allocate(new MergingDigest(100).byteSize());
+        new MergingDigest(100).asBytes(buf);
+        buf.flip();
+        empty.addSerialized(Collections.singletonList(buf));
+        assertEquals(0, empty.size());
+    }
+
+    @Test
+    public void testCompactEncoding() {
+        Random gen = getRandom();
+        MergingDigest gaussian = new MergingDigest(100);
+        MergingDigest repeated = new MergingDigest(100);
+        MergingDigest uniform = new MergingDigest(1000);
+        for (int i = 0; i < 100000; i++) {
+            gaussian.add(gen.nextGaussian());
+            repeated.add(gen.nextInt(10));
+            uniform.add(gen.nextDouble());
+        }
+
+        for (MergingDigest digest : Arrays.asList(gaussian, repeated, uniform, new MergingDigest(100))) {
+            ByteBuffer buf = ByteBuffer.allocate(digest.compactByteSize());
+            digest.asCompactBytes(buf);
+            assertFalse(buf.hasRemaining());
+            buf.flip();
+            MergingDigest copy = MergingDigest.fromBytes(buf);
+            assertFalse(buf.hasRemaining());
+
+            assertEquals(digest.size(), copy.size());
+            assertEquals(digest.centroidCount(), copy.centroidCount());
+            assertEquals(digest.getMin(), copy.getMin(), 0);
+            assertEquals(digest.getMax(), copy.getMax(), 0);
+            assertEquals(digest.compression(), copy.compression(), 0);
+            for (double q : new double[]{0, 0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999, 1}) {
+                assertEquals(digest.quantile(q), copy.quantile(q), 0);
+            }
+            // the compact form should beat the lossless verbose form once there is data to squeeze
+            if (digest.size() > 0) {
+                assertTrue(digest.compactByteSize() < digest.byteSize());
+            }
+        }
+        // and repeated values should squeeze down to much less than the lossy small form
+        assertTrue(repeated.compactByteSize() < repeated.smallByteSize() / 2);
+    }
+
+    /**
+     * Streaming through a channel has to use the same format as the buffer methods, however
+     * the reads and writes get chopped up.
+     */
+    @Test
+    public void testChannels() throws IOException {
+        Random gen = getRandom();
+        for (MergingDigest.Encoding encoding : new MergingDigest.Encoding[]{
+                MergingDigest.Encoding.VERBOSE_ENCODING, MergingDigest.Encoding.SMALL_ENCODING}) {
+            List<MergingDigest> digests = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                MergingDigest digest = new MergingDigest(50 + gen.nextInt(100));
+                int n = i % 5 == 0 ? 0 : gen.nextInt(10000);
+                for (int j = 0; j < n; j++) {
+                    digest.add(gen.nextGaussian());
+                }
+                digests.add(digest);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            WritableByteChannel channel = Channels.newChannel(out);
+            MergingDigest.writeTo(channel, digests.subList(0, 10), encoding,
+                    ByteBuffer.allocateDirect(MergingDigest.MIN_CHANNEL_BUFFER));
+            ByteBuffer scratch = ByteBuffer.allocateDirect(1000);
+            for (MergingDigest digest : digests.subList(10, 20)) {
+                digest.writeTo(channel, encoding, scratch);
+            }
+
+            // the bytes have to read back with fromBytes too
+            ByteBuffer written = ByteBuffer.wrap(out.toByteArray());
+            ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(out.toByteArray()));
+            ByteBuffer readAhead = ByteBuffer.allocate(40 + gen.nextInt(200));
+            readAhead.flip();
+            for (MergingDigest digest : digests) {
+                MergingDigest fromBuffer = MergingDigest.fromBytes(written);
+                MergingDigest fromChannel = MergingDigest.readFrom(in, readAhead);
+                assertEquals(digest.size(), fromChannel.size());
+                assertEquals(digest.getMin(), fromChannel.getMin(), 0);
+                assertEquals(digest.getMax(), fromChannel.getMax(), 0);
+                assertEquals(fromBuffer.compression(), fromChannel.compression(), 0);
+                // this compresses, which can move min and max in the small format, so it goes last
+                assertSameCentroids(fromBuffer, fromChannel);
+            }
+            assertFalse(written.hasRemaining());
+            assertNull(MergingDigest.readFrom(in, readAhead));
+        }
+
+        // a digest cut off part way through
+        MergingDigest digest = new MergingDigest(100);
+        for (int i = 0; i < 1000; i++) {
+            digest.add(gen.nextDouble());
+        }
+        ByteBuffer buf = ByteBuffer.allocate(digest.byteSize());
+        digest.asBytes(buf);
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(buf.array(), 0, buf.capacity() - 3));
+        ByteBuffer readAhead = ByteBuffer.allocate(100);
+        readAhead.flip();
+        try {
+            MergingDigest.readFrom(in, readAhead);
+            fail("Should have noticed the missing bytes");
+        } catch (EOFException e) {
+            // expected
+        }
+
+        try {
+            digest.writeTo(Channels.newChannel(new ByteArrayOutputStream()), MergingDigest.Encoding.COMPACT_ENCODING,
+                    ByteBuffer.allocate(100));
+            fail("The compact format can't be streamed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // an empty non-blocking channel would have the read spin forever
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            readAhead = ByteBuffer.allocate(100);
+            readAhead.flip();
+            MergingDigest.readFrom(pipe.source(), readAhead);
+            fail("Non-blocking channels can't be read");
+        } catch (IllegalBlockingModeException e) {
+            // expected
+        } finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    /**
+     * Reading into a reused digest has to give the same answers as reading a new one.
+     */
+    @Test
+    public void testReadInto() {
+        Random gen = getRandom();
+        MergingDigest target = new MergingDigest(100);
+        target.setConcurrentReads(true);
+        for (int i = 0; i < 1000; i++) {
+            target.add(gen.nextDouble() + 1000);
+        }
+
+        for (int trial = 0; trial < 20; trial++) {
+            MergingDigest digest = new MergingDigest(100);
+            int n = trial == 0 ? 0 : gen.nextInt(20000);
+            for (int i = 0; i < n; i++) {
+                digest.add(gen.nextGaussian());
+            }
+            ByteBuffer buf;
+            switch (trial % 4) {
+                case 0:
+                    buf = ByteBuffer.allocate(digest.byteSize());
+                    digest.asBytes(buf);
+                    break;
+                case 1:
+                    buf = ByteBuffer.allocate(digest.smallByteSize());
+                    digest.asSmallBytes(buf);
+                    break;
+                case 2:
+                    buf = ByteBuffer.allocate(digest.compactByteSize());
+                    digest.asCompactBytes(buf);
+                    break;
+                default:
+                    buf = ByteBuffer.allocate(digest.quantizedByteSize(16));
+                    digest.asQuantizedBytes(buf, 16);
+            }
+            buf.flip();
+            MergingDigest copy = MergingDigest.fromBytes(buf.duplicate());
+            MergingDigest.readInto(buf, target);
+            assertFalse(buf.hasRemaining());
+
+            assertEquals(copy.size(), target.size());
+            assertEquals(copy.getMin(), target.getMin(), 0);
+            assertEquals(copy.getMax(), target.getMax(), 0);
+            assertEquals(copy.size(), target.concurrentSize());
+            for (double q : new double[]{0, 0.001, 0.1, 0.5, 0.9, 0.999, 1}) {
+                assertEquals(copy.quantile(q), target.quantile(q), 0);
+                assertEquals(copy.quantile(q), target.concurrentQuantile(q), 0);
+            }
+        }
+
+        // a digest with more centroids than the target can hold
+        MergingDigest big = new MergingDigest(1000);
+        for (int i = 0; i < 100000; i++) {
+            big.add(gen.nextGaussian());
+        }
+        ByteBuffer buf = ByteBuffer.allocate(big.byteSize());
+        big.asBytes(buf);
+        buf.flip();
+        try {
+            MergingDigest.readInto(buf, target);
+            fail("Should have run out of room");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testQuantizedEncoding() {
+        Random gen = getRandom();
+        MergingDigest gaussian = new MergingDigest(100);
+        MergingDigest repeated = new MergingDigest(100);
+        MergingDigest uniform = new MergingDigest(1000);
+        // few enough samples that every weight is below 4096
+        for (int i = 0; i < 20000; i++) {
+            gaussian.add(gen.nextGaussian());
+            repeated.add(gen.nextInt(10));
+            uniform.add(gen.nextDouble());
+        }
+
+        for (MergingDigest digest : Arrays.asList(gaussian, repeated, uniform, new MergingDigest(100))) {
+            for (int bits : new int[]{8, 16, 24}) {
+                ByteBuffer buf = ByteBuffer.allocate(digest.quantizedByteSize(bits));
+                digest.asQuantizedBytes(buf, bits);
+                assertFalse(buf.hasRemaining());
+                buf.flip();
+                MergingDigest copy = MergingDigest.fromBytes(buf);
+                assertFalse(buf.hasRemaining());
+
+                // the weights are exact so only the means move
+                assertEquals(digest.size(), copy.size());
+                assertEquals(digest.centroidCount(), copy.centroidCount());
+                assertEquals(digest.getMin(), copy.getMin(), 0);
+                assertEquals(digest.getMax(), copy.getMax(), 0);
+                assertEquals(digest.compression(), copy.compression(), 0);
+                double bound = (digest.getMax() - digest.getMin()) / (2 * ((1L << bits) - 1));
+                for (double q : new double[]{0, 0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999, 1}) {
+                    assertEquals(digest.quantile(q), copy.quantile(q), bound * (1 + 1e-9));
+                }
+            }
+        }
+        // 16 bit means and 16 bit weights come to 4 bytes per centroid plus a small header
+        int n = gaussian.centroidCount();
+        assertEquals(n, gaussian.quantizedByteSize(16) - gaussian.quantizedByteSize(8));
+        assertTrue(gaussian.quantizedByteSize(16) <= 4 * n + 40);
+        assertTrue(gaussian.quantizedByteSize(16) < gaussian.smallByteSize() * 0.6);
+
+        // big weights are rounded but the rounding is carried along so the total survives
+        MergingDigest big = new MergingDigest(100);
+        for (int i = 0; i < 1000000; i++) {
+            big.add(gen.nextGaussian());
+        }
+        ByteBuffer buf = ByteBuffer.allocate(big.quantizedByteSize(16));
+        big.asQuantizedBytes(buf, 16);
+        buf.flip();
+        MergingDigest copy = MergingDigest.fromBytes(buf);
+        assertEquals(big.size(), copy.size());
+        for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+            assertEquals(big.quantile(q), copy.quantile(q), 1e-3);
+        }
+        // and the copy can still be merged
+        copy.add(0);
+        copy.compress();
+        assertEquals(big.size() + 1, copy.size());
+    }
+
+    @Test
+    public void testQuantizedWeights() {
+        Random gen = getRandom();
+        for (int w = 1; w < 4096; w++) {
+            assertEquals(w, CentroidCodec.weightOf(CentroidCodec.quantizeWeight(w)), 0);
+        }
+        assertEquals(0, CentroidCodec.weightOf(CentroidCodec.quantizeWeight(0)), 0);
+        assertEquals(1, CentroidCodec.weightOf(CentroidCodec.quantizeWeight(0.1)), 0);
+        for (int i = 0; i < 10000; i++) {
+            double w = Math.exp(gen.nextDouble() * 43);
+            double decoded = CentroidCodec.weightOf(CentroidCodec.quantizeWeight(w));
+            if (w >= 4096) {
+                assertEquals(1, decoded / w, 5e-4);
+            } else {
+                assertEquals(Math.max(1, Math.rint(w)), decoded, 0);
+            }
+        }
+        // the biggest weights clip rather than wrap around
+        assertEquals(Math.pow(2, 63), CentroidCodec.weightOf(CentroidCodec.quantizeWeight(1e30)), 1e15);
+
+        try {
+            new MergingDigest(100).asQuantizedBytes(ByteBuffer.allocate(100), 33);
+            fail("Should have rejected the precision");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The centroid encoding has to give back exactly the same bits, whatever the values.
+     */
+    @Test
+    public void testCentroidCodec() {
+        Random gen = getRandom();
+        for (int trial = 0; trial < 100; trial++) {
+            int n = gen.nextInt(300);
+            double[] mean = new double[n];
+            double[] weight = new double[n];
+            boolean fractional = trial % 3 == 0;
+            for (int i = 0; i < n; i++) {
+                switch (gen.nextInt(4)) {
+                    case 0:
+                        mean[i] = gen.nextGaussian() * 1e-300;
+                        break;
+                    case 1:
+                        mean[i] = gen.nextInt(5);
+                        break;
+                    default:
+                        mean[i] = gen.nextGaussian() * 1000;
+                }
+                weight[i] = fractional ? gen.nextDouble() * 100 : gen.nextInt(1 << gen.nextInt(31));
+            }
+            if (n > 0 && trial % 5 == 0) {
+                weight[0] = Long.MAX_VALUE / 2;
+                mean[0] = -0.0;
+            }
+            Arrays.sort(mean);
+
+            ByteBuffer buf = ByteBuffer.allocate(CentroidCodec.byteSize(mean, weight, n));
+            CentroidCodec.write(buf, mean, weight, n);
+            assertFalse(buf.hasRemaining());
+            buf.flip();
+            double[] m = new double[n];
+            double[] w = new double[n];
+            CentroidCodec.read(buf, m, w, n);
+            assertFalse(buf.hasRemaining());
+            for (int i = 0; i < n; i++) {
+                assertEquals(Double.doubleToRawLongBits(mean[i]), Double.doubleToRawLongBits(m[i]));
+                assertEquals(weight[i], w[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testEncodeLong() {
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        long[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE, 1L << 40, Long.MAX_VALUE, -1};
+        for (long v : values) {
+            AbstractTDigest.encodeLong(buf, v);
+        }
+        buf.flip();
+        for (long v : values) {
+            assertEquals(v, AbstractTDigest.decodeLong(buf));
+        }
+        assertFalse(buf.hasRemaining());
+    }
+
+    /**
+     * Big merge buffers are radix sorted, recording digests use the index sort. Both have
+     * to give the same centroids.
+     */
+    @Test
+    public void testRadixSortedMerge() {
+        Random gen = getRandom();
+        MergingDigest radix = new MergingDigest(100, 10 * MergingDigest.RADIX_SORT_THRESHOLD);
+        MergingDigest indexed = new MergingDigest(100, 10 * MergingDigest.RADIX_SORT_THRESHOLD);
+        indexed.recordAllData();
+        for (int i = 0; i < 200000; i++) {
+            double x = i % 3 == 0 ? gen.nextInt(100) : gen.nextGaussian();
+            radix.add(x);
+            indexed.add(x);
+        }
+        assertSameCentroids(indexed, radix);
+    }
+
+    /**
+     * Merging a few ascending runs has to give exactly the stable sort order.
+     */
+    @Test
+    public void testMergeRuns() {
+        Random gen = getRandom();
+        for (int k = 1; k <= MergingDigest.MAX_RUNS + 1; k++) {
+            int n = 1000;
+            double[] values = new double[n];
+            int[] starts = new int[k];
+            for (int r = 1; r < k; r++) {
+                starts[r] = starts[r - 1] + gen.nextInt(n / k);
+            }
+            int run = 0;
+            double x = 0;
+            for (int i = 0; i < n; i++) {
+                if (run < k && starts[run] == i) {
+                    x = gen.nextInt(10);
+                    run++;
+                }
+                // plenty of ties within and between runs
+                x += gen.nextInt(3);
+                values[i] = x;
+            }
+
+            int[] expected = new int[n];
+            Sort.stableSort(expected, values, n);
+            int[] actual = new int[n];
+            MergingDigest.mergeRuns(actual, values, n, starts, k, new int[k], new int[k]);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    /**
+     * Sorted input goes through the run merge and reverse sorted input has far too many runs so it
+     * gets sorted. Both should be equally accurate.
+     */
+    @Test
+    public void testSortedInput() {
+        for (int direction : new int[]{1, -1}) {
+            MergingDigest digest = new MergingDigest(100);
+            int n = 100000;
+            for (int i = 0; i < n; i++) {
+                digest.add(direction > 0 ? i : n - 1 - i);
+            }
+            assertEquals(n, digest.size());
+            assertEquals(0, digest.getMin(), 0);
+            assertEquals(n - 1, digest.getMax(), 0);
+            for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+                assertEquals(q, digest.cdf(q * n), 0.005);
+            }
+            digest.compress();
+            assertEquals(0, digest.checkWeights());
+        }
+    }
+
+    @Test
+    public void testBulkAddNaN() {
+        MergingDigest digest = new MergingDigest(100);
+        digest.add(new double[]{1, 2, 3}, 0, 3);
+        try {
+            digest.add(new double[]{4, Double.NaN, 5}, 0, 3);
+            fail("NaN should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(3, digest.size());
+        assertEquals(3, digest.getMax(), 0);
+    }
+
+    @Test
+    public void testConcurrentReads() {
+        Random gen = getRandom();
+        MergingDigest digest = new MergingDigest(100);
+        digest.setConcurrentReads(true);
+        assertEquals(0, digest.concurrentSize());
+        assertTrue(Double.isNaN(digest.concurrentQuantile(0.5)));
+
+        // nothing merged yet so the answers are exact
+        for (int i = 0; i < 10; i++) {
+            digest.add(i);
+        }
+        assertEquals(10, digest.concurrentSize());
+        assertEquals(0.35, digest.concurrentCdf(3), 0);
+        assertEquals(0, digest.concurrentQuantile(0), 0);
+        assertEquals(9, digest.concurrentQuantile(1), 0);
+
+        // later samples get sorted in with the ones that were read before
+        for (int i = 19; i >= 10; i--) {
+            digest.add(i);
+        }
+        assertEquals(20, digest.concurrentSize());
+        assertEquals(0.175, digest.concurrentCdf(3), 0);
+        assertEquals(0.775, digest.concurrentCdf(15), 0);
+        assertEquals(19, digest.concurrentQuantile(1), 0);
+
+        for (int i = 0; i < 100_000; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        double[] block = new double[1234];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = gen.nextGaussian();
+        }
+        digest.add(block, 0, block.length);
+        assertEquals(digest.size(), digest.concurrentSize());
+        for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+            double x = digest.concurrentQuantile(q);
+            assertEquals(q, digest.concurrentCdf(x), 0.005);
+        }
+
+        // once everything is merged, both paths look at the same centroids
+        digest.compress();
+        for (double q : new double[]{0, 0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999, 1}) {
+            assertEquals(digest.quantile(q), digest.concurrentQuantile(q), 0);
+            double x = digest.quantile(q);
+            assertEquals(digest.cdf(x), digest.concurrentCdf(x), 0);
+        }
+
+        digest.setConcurrentReads(false);
+        try {
+            digest.concurrentCdf(0);
+            fail("Should have needed concurrent reads");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final MergingDigest digest = new MergingDigest(100);
+        digest.setConcurrentReads(true);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> readers = new ArrayList<>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < 3; t++) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long lastSize = 0;
+                        while (!done.get()) {
+                            long size = digest.concurrentSize();
+                            assertTrue(size >= lastSize);
+                            lastSize = size;
+                            if (size > 0) {
+                                double median = digest.concurrentQuantile(0.5);
+                                assertTrue(median >= 0 && median < 1);
+                                double q = digest.concurrentCdf(0.5);
+                                assertTrue(q >= 0 && q <= 1);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        Random gen = getRandom();
+        for (int i = 0; i < 1_000_000; i++) {
+            digest.add(gen.nextDouble());
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(1_000_000, digest.concurrentSize());
+        assertEquals(0.5, digest.concurrentQuantile(0.5), 0.01);
+    }
+
+    private static void assertSameCentroids(TDigest expected, TDigest actual) {
+        assertEquals(expected.size(), actual.size());
+        Iterator<Centroid> ix = actual.centroids().iterator();
+        for (Centroid c : expected.centroids()) {
+            Centroid other = ix.next();
+            assertEquals(c.mean(), other.mean(), 0);
+            assertEquals(c.count(), other.count());
+        }
+        assertFalse(ix.hasNext());
+    }
+
     /**
      * Verifies interpolation between a singleton and a larger centroid.
      */
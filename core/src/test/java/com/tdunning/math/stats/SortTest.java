@@ -23,6 +23,7 @@ import org.junit.Test;
 
 import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -323,6 +324,56 @@ public class SortTest {
         }
     }
 
+    /**
+     * Radix sort has to put things in exactly the order that the stable sort does.
+     */
+    @Test
+    public void testRadixSort() {
+        Random rand = new Random();
+        for (int n : new int[]{0, 1, 2, 100, 5000}) {
+            double[] values = new double[n];
+            double[] weights = new double[n];
+            for (int i = 0; i < n; i++) {
+                switch (rand.nextInt(4)) {
+                    case 0:
+                        // lots of ties
+                        values[i] = rand.nextInt(20) - 10;
+                        break;
+                    case 1:
+                        values[i] = rand.nextBoolean() ? 0.0 : -0.0;
+                        break;
+                    case 2:
+                        values[i] = rand.nextGaussian() * 1e-300;
+                        break;
+                    default:
+                        values[i] = rand.nextGaussian() * 1e10;
+                }
+                // the weights record where each value started
+                weights[i] = i;
+            }
+            int[] order = new int[n];
+            Sort.stableSort(order, values, n);
+
+            double[] sorted = values.clone();
+            Sort.radixSort(sorted, weights, n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(values[order[i]], sorted[i], 0);
+                assertEquals(order[i], weights[i], 0);
+            }
+
+            Sort.radixSort(values, null, n);
+            assertArrayEquals(sorted, values, 0);
+        }
+
+        double[] extremes = {Double.POSITIVE_INFINITY, Double.MAX_VALUE, 1, Double.MIN_VALUE, 0,
+                -Double.MIN_VALUE, -1, -Double.MAX_VALUE, Double.NEGATIVE_INFINITY};
+        double[] x = extremes.clone();
+        Sort.radixSort(x, null, x.length);
+        for (int i = 0; i < x.length; i++) {
+            assertEquals(extremes[x.length - 1 - i], x[i], 0);
+        }
+    }
+
     @Test
     public void testRandomizedShortSort() {
         Random rand = new Random();
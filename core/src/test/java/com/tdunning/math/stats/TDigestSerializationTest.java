@@ -31,6 +31,7 @@ import java.util.Random;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Verifies that the various TDigest implementations can be serialized.
@@ -48,6 +49,133 @@ public class TDigestSerializationTest {
         assertSerializesAndDeserializes(new AVLTreeDigest(100));
     }
 
+    /**
+     * Only the live centroids should be written, not the buffers behind them, and the copy has
+     * to carry on exactly as the original would.
+     */
+    @Test
+    public void testMergingDigestSize() throws IOException {
+        Random gen = new Random();
+        MergingDigest digest = new MergingDigest(100);
+        digest.setScaleFunction(ScaleFunction.K_3);
+        for (int i = 0; i < 100000; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        // sizing compresses so it has to come first
+        int byteSize = digest.byteSize();
+        byte[] bytes = serialize(digest);
+        assertTrue(bytes.length < byteSize);
+        MergingDigest copy = deserialize(bytes);
+        assertEquals(ScaleFunction.K_3, copy.getScaleFunction());
+        assertEquals(digest.size(), copy.size());
+
+        for (int i = 0; i < 10000; i++) {
+            double x = gen.nextGaussian();
+            digest.add(x);
+            copy.add(x);
+        }
+        for (double q : new double[]{0, 0.001, 0.1, 0.5, 0.9, 0.999, 1}) {
+            assertEquals(digest.quantile(q), copy.quantile(q), 0);
+        }
+        assertTDigestEquals(digest, copy);
+    }
+
+    /**
+     * Serializing mustn't change the digest, and a buffer size that the constructors would size
+     * differently from the header still has to come back with the same settings.
+     */
+    @Test
+    public void testRepeatedSerialization() throws IOException {
+        Random gen = new Random();
+        MergingDigest digest = new MergingDigest(50, 1000);
+        digest.useTwoLevelCompression = false;
+        for (int i = 0; i < 100017; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        MergingDigest copy = deserialize(serialize(digest));
+        int centroids = digest.centroidCount();
+        double[] qs = {0, 0.001, 0.1, 0.5, 0.9, 0.999, 1};
+        double[] before = new double[qs.length];
+        for (int i = 0; i < qs.length; i++) {
+            before[i] = digest.quantile(qs[i]);
+        }
+        for (int k = 0; k < 10; k++) {
+            serialize(digest);
+        }
+        assertEquals(centroids, digest.centroidCount());
+        assertEquals(centroids, copy.centroidCount());
+        for (int i = 0; i < qs.length; i++) {
+            assertEquals(before[i], digest.quantile(qs[i]), 0);
+        }
+        assertEquals(digest.toString(), copy.toString());
+
+        for (int i = 0; i < 10000; i++) {
+            double x = gen.nextGaussian();
+            digest.add(x);
+            copy.add(x);
+        }
+        assertEquals(digest.centroidCount(), copy.centroidCount());
+        for (double q : qs) {
+            assertEquals(digest.quantile(q), copy.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void testIncrementalMergeSurvives() throws IOException {
+        Random gen = new Random();
+        MergingDigest digest = new MergingDigest(100);
+        digest.setIncrementalMerge(5);
+        for (int i = 0; i < 10017; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        MergingDigest copy = deserialize(serialize(digest));
+        assertTrue(copy.isIncrementalMerge());
+        assertEquals(digest.size(), copy.size());
+        assertTDigestEquals(digest, copy);
+    }
+
+    @Test
+    public void testAVLTreeDigestSize() throws IOException {
+        Random gen = new Random();
+        AVLTreeDigest digest = new AVLTreeDigest(100);
+        int empty = serialize(digest).length;
+        for (int i = 0; i < 100000; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        // sizing compresses so it has to come first
+        int byteSize = digest.byteSize();
+        byte[] bytes = serialize(digest);
+        // past the fixed overhead of the class descriptions, a centroid costs what it does in asBytes
+        assertTrue(bytes.length - empty <= byteSize);
+        AVLTreeDigest copy = deserialize(bytes);
+        assertEquals(digest.size(), copy.size());
+        for (double q : new double[]{0, 0.001, 0.1, 0.5, 0.9, 0.999, 1}) {
+            assertEquals(digest.quantile(q), copy.quantile(q), 0);
+        }
+        assertTDigestEquals(digest, copy);
+    }
+
+    /**
+     * Digests that record their data have to bring the data with them.
+     */
+    @Test
+    public void testRecordedData() throws IOException {
+        for (TDigest digest : new TDigest[]{new MergingDigest(100), new AVLTreeDigest(100)}) {
+            digest.recordAllData();
+            Random gen = new Random();
+            for (int i = 0; i < 1000; i++) {
+                digest.add(gen.nextDouble());
+            }
+            TDigest copy = deserialize(serialize(digest));
+            Iterator<Centroid> cx = copy.centroids().iterator();
+            for (Centroid c1 : digest.centroids()) {
+                Centroid c2 = cx.next();
+                assertEquals(c1.data(), c2.data());
+            }
+            assertFalse(cx.hasNext());
+        }
+    }
+
     private <T extends TDigest> void assertSerializesAndDeserializes(T tdigest) throws IOException {
         assertNotNull(deserialize(serialize(tdigest)));
 
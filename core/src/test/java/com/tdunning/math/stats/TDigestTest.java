@@ -496,6 +496,37 @@ public abstract class TDigestTest extends AbstractTest {
         }
     }
 
+    @Test
+    public void testBatchQueries() {
+        final TDigest digest = factory().create();
+        Random gen = getRandom();
+        for (int i = 0; i < 100000; i++) {
+            digest.add(gen.nextGaussian());
+        }
+        // deliberately unsorted and with a repeat
+        double[] qs = {0.99, 0.5, 0, 0.999, 0.75, 1, 0.9, 0.5, 0.001};
+        double[] quantiles = digest.quantiles(qs);
+        assertEquals(qs.length, quantiles.length);
+        for (int i = 0; i < qs.length; i++) {
+            assertEquals(digest.quantile(qs[i]), quantiles[i], 0);
+        }
+
+        double[] xs = {3, -1, 0, digest.getMin(), digest.getMax(), 0.5, -10, 10, 0};
+        double[] cdfs = digest.cdfs(xs);
+        assertEquals(xs.length, cdfs.length);
+        for (int i = 0; i < xs.length; i++) {
+            assertEquals(digest.cdf(xs[i]), cdfs[i], 0);
+        }
+
+        assertEquals(0, digest.quantiles().length);
+        try {
+            digest.quantiles(0.5, 1.5);
+            fail("Should have rejected q > 1");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testEmpty() {
         final TDigest digest = factory().create();
@@ -503,6 +534,37 @@ public abstract class TDigestTest extends AbstractTest {
         assertTrue(Double.isNaN(digest.quantile(q)));
     }
 
+    /**
+     * A cleared digest has to act like a new one.
+     */
+    @Test
+    public void testClear() {
+        Random gen = getRandom();
+        TDigest digest = factory().create();
+        for (int i = 0; i < 100000; i++) {
+            digest.add(gen.nextDouble() * 100 - 50);
+        }
+        digest.clear();
+        assertEquals(0, digest.size());
+        assertEquals(0, digest.centroidCount());
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        assertEquals(Double.POSITIVE_INFINITY, digest.getMin(), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, digest.getMax(), 0);
+
+        TDigest fresh = factory().create();
+        for (int i = 0; i < 10000; i++) {
+            double x = gen.nextGaussian();
+            digest.add(x);
+            fresh.add(x);
+        }
+        assertEquals(fresh.size(), digest.size());
+        assertEquals(fresh.getMin(), digest.getMin(), 0);
+        assertEquals(fresh.getMax(), digest.getMax(), 0);
+        for (double q = 0.01; q < 1; q += 0.01) {
+            assertEquals(fresh.quantile(q), digest.quantile(q), 0.01);
+        }
+    }
+
     @Test
     public void testMoreThan2BValues() {
         final TDigest digest = factory(100).create();
@@ -569,6 +631,38 @@ public abstract class TDigestTest extends AbstractTest {
         }
     }
 
+    /**
+     * Block weights have to be weights that {@link TDigest#add(double, int)} would take, and a
+     * bad one anywhere in the block has to leave the digest alone.
+     */
+    @Test
+    public void testBlockWeights() {
+        TDigest digest = factory().create();
+        double[] values = {1, 2, 3, 4, 5};
+        digest.add(values, null, 0, values.length);
+        assertEquals(5, digest.size());
+        digest.add(values, new double[]{1, 2, 3, 1, 1}, 0, values.length);
+        assertEquals(13, digest.size());
+
+        for (double bad : new double[]{0, -1, 1.5, Double.NaN, Double.POSITIVE_INFINITY, 3e9}) {
+            try {
+                digest.add(values, new double[]{1, 1, bad, 1, 1}, 0, values.length);
+                fail("Weight " + bad + " should be an illegal argument");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertEquals(13, digest.size());
+        }
+        try {
+            digest.add(new double[]{6, Double.NaN}, null, 0, 2);
+            fail("NaN should be an illegal argument");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(13, digest.size());
+        assertEquals(5, digest.getMax(), 0);
+    }
+
 
     @Test
     public void testUniform() {
@@ -0,0 +1,109 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakLingering;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@ThreadLeakLingering(linger = 1000)
+public class TDigestsTest extends AbstractTest {
+    private List<TDigest> parts(Random gen, int n, List<Double> all) {
+        List<TDigest> r = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            TDigest part = i % 3 == 0 ? new AVLTreeDigest(100) : new MergingDigest(100);
+            int k = 1 + gen.nextInt(500);
+            for (int j = 0; j < k; j++) {
+                double x = gen.nextGaussian() + i % 7;
+                part.add(x);
+                all.add(x);
+            }
+            r.add(part);
+        }
+        return r;
+    }
+
+    @Test
+    public void testParallelMerge() throws InterruptedException {
+        Random gen = getRandom();
+        List<Double> all = new ArrayList<>();
+        List<TDigest> parts = parts(gen, 1000, all);
+        Collections.sort(all);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            MergingDigest merged = TDigests.parallelMerge(parts, 100, pool);
+            assertEquals(all.size(), merged.size());
+            assertEquals(all.get(0), merged.getMin(), 0);
+            assertEquals(all.get(all.size() - 1), merged.getMax(), 0);
+            assertEquals(100, merged.compression(), 0);
+            for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+                double x = Dist.quantile(q, all);
+                assertEquals(q, merged.cdf(x), 0.005);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The same inputs in the same order have to give the same digest no matter how many
+     * threads do the work.
+     */
+    @Test
+    public void testReproducible() throws InterruptedException {
+        Random gen = getRandom();
+        List<TDigest> parts = parts(gen, 500, new ArrayList<Double>());
+
+        ForkJoinPool one = new ForkJoinPool(1);
+        ForkJoinPool many = new ForkJoinPool(8);
+        try {
+            MergingDigest a = TDigests.parallelMerge(parts, 100, one);
+            MergingDigest b = TDigests.parallelMerge(parts, 100, many);
+            MergingDigest c = TDigests.parallelMerge(parts, 100, many);
+            assertEquals(a.size(), b.size());
+            Iterator<Centroid> ib = b.centroids().iterator();
+            Iterator<Centroid> ic = c.centroids().iterator();
+            for (Centroid centroid : a.centroids()) {
+                Centroid x = ib.next();
+                Centroid y = ic.next();
+                assertEquals(centroid.mean(), x.mean(), 0);
+                assertEquals(centroid.count(), x.count());
+                assertEquals(centroid.mean(), y.mean(), 0);
+                assertEquals(centroid.count(), y.count());
+            }
+            assertFalse(ib.hasNext());
+            assertFalse(ic.hasNext());
+
+            assertEquals(0, TDigests.parallelMerge(new ArrayList<TDigest>(), 100, one).size());
+        } finally {
+            one.shutdown();
+            many.shutdown();
+            one.awaitTermination(10, TimeUnit.SECONDS);
+            many.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to Ted Dunning under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tdunning.math.stats;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class WindowedDigestTest extends AbstractTest {
+    /**
+     * A window of 60 one second slots on a clock that only moves when told to.
+     */
+    private static class ManualWindow extends WindowedDigest {
+        long now = 1_000_000;
+
+        ManualWindow() {
+            super(100, 60, 1000);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testExpiry() {
+        Random gen = getRandom();
+        ManualWindow digest = new ManualWindow();
+        for (int i = 0; i < 1000; i++) {
+            digest.add(gen.nextDouble());
+        }
+        digest.now += 30_000;
+        for (int i = 0; i < 1000; i++) {
+            digest.add(10 + gen.nextDouble());
+        }
+        assertEquals(2000, digest.size());
+        assertTrue(digest.quantile(0.25) < 1);
+        assertTrue(digest.quantile(0.75) > 10);
+
+        // the first second is still just inside the window
+        digest.now += 29_999;
+        assertEquals(2000, digest.size());
+        digest.now += 1;
+        assertEquals(1000, digest.size());
+        assertTrue(digest.getMin() >= 10);
+        assertTrue(digest.quantile(0.01) > 10);
+
+        // a long gap clears everything
+        digest.now += 3_600_000;
+        assertEquals(0, digest.size());
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        digest.add(5);
+        assertEquals(5, digest.quantile(0.5), 0);
+    }
+
+    /**
+     * The window should be just as good as one digest with everything that is still in it.
+     */
+    @Test
+    public void testSameAsOneDigest() {
+        Random gen = getRandom();
+        ManualWindow digest = new ManualWindow();
+        List<Double> live = new ArrayList<>();
+        for (int second = 0; second < 150; second++) {
+            // each second has samples from a different spot so the slots overlap a bit
+            for (int i = 0; i < 500; i++) {
+                double x = second + 10 * gen.nextGaussian();
+                digest.add(x);
+                if (second >= 150 - 60) {
+                    live.add(x);
+                }
+            }
+            digest.now += 1000;
+            // queries every so often, which leaves the cache in all sorts of states
+            if (second % 7 == 0) {
+                digest.quantile(0.5);
+            }
+        }
+        digest.now -= 1000;
+
+        MergingDigest reference = new MergingDigest(100);
+        double[] data = new double[live.size()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = live.get(i);
+            reference.add(data[i]);
+        }
+        Arrays.sort(data);
+        assertEquals(data.length, digest.size());
+        assertEquals(data[0], digest.getMin(), 0);
+        assertEquals(data[data.length - 1], digest.getMax(), 0);
+        for (double q : new double[]{0.001, 0.01, 0.1, 0.5, 0.9, 0.99, 0.999}) {
+            assertEquals(q, Dist.cdf(digest.quantile(q), data), 0.005);
+            assertEquals(reference.quantile(q), digest.quantile(q), 1);
+        }
+    }
+
+    /**
+     * Adds have to show up right away even though the older slots are cached.
+     */
+    @Test
+    public void testAddsAfterQuery() {
+        ManualWindow digest = new ManualWindow();
+        for (int i = 0; i < 100; i++) {
+            digest.add(i);
+        }
+        digest.now += 1000;
+        assertEquals(100, digest.size());
+        digest.add(1000);
+        assertEquals(101, digest.size());
+        assertEquals(1000, digest.getMax(), 0);
+        digest.add(new double[]{2000, 3000}, 0, 2);
+        assertEquals(103, digest.size());
+        assertEquals(3000, digest.getMax(), 0);
+
+        // a clock that steps back keeps filling the current slot
+        digest.now -= 5000;
+        digest.add(-1);
+        assertEquals(104, digest.size());
+        assertEquals(-1, digest.getMin(), 0);
+
+        digest.clear();
+        assertEquals(0, digest.size());
+        digest.add(7);
+        assertEquals(1, digest.size());
+    }
+
+    @Test
+    public void testSerialization() {
+        Random gen = getRandom();
+        ManualWindow digest = new ManualWindow();
+        for (int second = 0; second < 100; second++) {
+            for (int i = 0; i < 100; i++) {
+                digest.add(gen.nextGaussian());
+            }
+            digest.now += 1000;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(digest.byteSize());
+        digest.asBytes(buf);
+        buf.flip();
+        MergingDigest copy = MergingDigest.fromBytes(buf);
+        assertEquals(digest.size(), copy.size());
+        assertEquals(digest.quantile(0.5), copy.quantile(0.5), 1e-3);
+    }
+
+    @Test
+    public void testBadArguments() {
+        try {
+            new WindowedDigest(100, 0, 1000);
+            fail("Should have needed a slot");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new WindowedDigest(100, 60, 0);
+            fail("Should have needed some time in each slot");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new WindowedDigest(100, 60, 1000).recordAllData();
+            fail("Can't record");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}